@@ -0,0 +1,295 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This wraps another ComplianceDocumentDatabase and keeps the most recently used document versions in memory. getDocument hands out a copy of the cached document, as the diff modifies the document it is given, whereas getReadOnlyDocument hands out the cached document itself.
+*Computed diffs between versions are kept too. When a version is written its diff against the version it replaces is worked out in the background, as that is the diff every client asks for next.
+*Concurrent misses for the same document, diff or latest version share a single load from the wrapped database.
+*
+*/
+public class CachingComplianceDocumentDatabase implements ComplianceDocumentDatabase {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( CachingComplianceDocumentDatabase.class );
+
+	private ComplianceDocumentDatabase database;
+	private LinkedHashMap<String,ComplianceDocument> documents;
+	private LinkedHashMap<String,ComplianceDocument> diffs;
+	private String baseURI;
+	private ExecutorService precompute;
+	private AtomicLong hits=new AtomicLong();
+	private AtomicLong misses=new AtomicLong();
+	private AtomicLong evictions=new AtomicLong();
+	private AtomicLong diffHits=new AtomicLong();
+	private AtomicLong diffMisses=new AtomicLong();
+	private ComplianceDocumentSingleFlight<String,ComplianceDocument> documentLoads=new ComplianceDocumentSingleFlight<String,ComplianceDocument>();
+	private ComplianceDocumentSingleFlight<String,ComplianceDocument> diffLoads=new ComplianceDocumentSingleFlight<String,ComplianceDocument>();
+	private ComplianceDocumentSingleFlight<String,String> versionLoads=new ComplianceDocumentSingleFlight<String,String>();
+	//moves on whenever a document is invalidated, a load that started before then is not cached
+	private AtomicLong generation=new AtomicLong();
+
+	public CachingComplianceDocumentDatabase(ComplianceDocumentDatabase database,final int maxDocuments,final int maxDiffs,String baseURI) {
+		this.database=database;
+		this.baseURI=baseURI;
+		precompute=Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread=new Thread(runnable,"DiffPrecompute");
+			thread.setDaemon(true);
+			return thread;
+		});
+		diffs=new LinkedHashMap<String,ComplianceDocument>(16,0.75f,true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,ComplianceDocument> eldest) {
+				return size() > maxDiffs;
+			}
+		};
+		documents=new LinkedHashMap<String,ComplianceDocument>(16,0.75f,true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,ComplianceDocument> eldest) {
+				if (size() > maxDocuments) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private static String documentKey(String jurisdiction,String type,String shortName) {
+		return jurisdiction+"/"+type+"/"+shortName+"|";
+	}
+
+	private static String versionKey(String baseURI,String jurisdiction,String type,String shortName,String version) {
+		return documentKey(jurisdiction,type,shortName)+version+"|"+baseURI;
+	}
+
+	private static String diffKey(String baseURI,String jurisdiction,String type,String shortName,String version,String previousVersion) {
+		return documentKey(jurisdiction,type,shortName)+version+"|"+previousVersion+"|"+baseURI;
+	}
+
+	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex() {
+		return database.getDocumentIndex();
+	}
+
+	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction) {
+		return database.getDocumentIndex(jurisdiction);
+	}
+
+	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction,String type) {
+		return database.getDocumentIndex(jurisdiction,type);
+	}
+
+	public ComplianceDocumentIndexItem getDocumentIndexItem(String jurisdiction,String type,String shortName) {
+		return database.getDocumentIndexItem(jurisdiction,type,shortName);
+	}
+
+	public String getLatestVersion(String jurisdiction,String type,String shortName) {
+		return versionLoads.get(documentKey(jurisdiction,type,shortName),() -> database.getLatestVersion(jurisdiction,type,shortName));
+	}
+
+	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version) {
+		return ComplianceDocumentCopier.copy(getReadOnlyDocument(baseURI,jurisdiction,type,shortName,version));
+	}
+
+	//a partial load is never cached itself, but one that only leaves out bodies and inserts can be cut from a cached version
+	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version,ComplianceDocumentLoadOptions options) {
+		if (options.isFull()) return getDocument(baseURI,jurisdiction,type,shortName,version);
+		ComplianceDocument document;
+		synchronized (documents) {
+			document=documents.get(versionKey(baseURI,jurisdiction,type,shortName,version));
+		}
+		if (document!=null && !options.loadBodies() && !options.loadInserts()) {
+			hits.incrementAndGet();
+			return ComplianceDocumentFilter.filterBodies(document);
+		}
+		return database.getDocument(baseURI,jurisdiction,type,shortName,version,options);
+	}
+
+	public ComplianceDocument getReadOnlyDocument(String baseURI,String jurisdiction,String type,String shortName,String version) {
+		String key=versionKey(baseURI,jurisdiction,type,shortName,version);
+		ComplianceDocument document;
+		synchronized (documents) {
+			document=documents.get(key);
+		}
+		if (document!=null) {
+			hits.incrementAndGet();
+			return document;
+		}
+		misses.incrementAndGet();
+		return documentLoads.get(key,() -> {
+			//a load that finished just before this one started will have cached its result
+			synchronized (documents) {
+				ComplianceDocument cached=documents.get(key);
+				if (cached!=null) return cached;
+			}
+			long started=generation.get();
+			ComplianceDocument loaded=database.getDocument(baseURI,jurisdiction,type,shortName,version);
+			if (loaded==null) return null;
+			synchronized (documents) {
+				if (generation.get()==started) documents.put(key,loaded);
+			}
+			return loaded;
+		});
+	}
+
+	//path and structure filtering copy what they keep, so every filtered view of a diff is served from the one cached diff
+	public ComplianceDocument getDiff(String baseURI,String jurisdiction,String type,String shortName,String version,String previousVersion) {
+		String key=diffKey(baseURI,jurisdiction,type,shortName,version,previousVersion);
+		ComplianceDocument diff;
+		synchronized (diffs) {
+			diff=diffs.get(key);
+		}
+		if (diff!=null) {
+			diffHits.incrementAndGet();
+			return diff;
+		}
+		diffMisses.incrementAndGet();
+		return diffLoads.get(key,() -> {
+			//a load that finished just before this one started will have cached its result
+			synchronized (diffs) {
+				ComplianceDocument cached=diffs.get(key);
+				if (cached!=null) return cached;
+			}
+			long started=generation.get();
+			ComplianceDocument loaded=database.getDiff(baseURI,jurisdiction,type,shortName,version,previousVersion);
+			if (loaded==null) return null;
+			synchronized (diffs) {
+				if (generation.get()==started) diffs.put(key,loaded);
+			}
+			return loaded;
+		});
+	}
+
+	//a version already in memory is filtered there, otherwise only the fragment is read rather than loading the whole version
+	public ComplianceDocument getDocumentFragment(String baseURI,String jurisdiction,String type,String shortName,String version,String documentReference) {
+		ComplianceDocument document;
+		synchronized (documents) {
+			document=documents.get(versionKey(baseURI,jurisdiction,type,shortName,version));
+		}
+		if (document!=null) {
+			hits.incrementAndGet();
+			return ComplianceDocumentFilter.filterPath(document,documentReference);
+		}
+		return database.getDocumentFragment(baseURI,jurisdiction,type,shortName,version,documentReference);
+	}
+
+	public boolean checkVersionExists(String jurisdiction,String type,String shortName,String version) {
+		return database.checkVersionExists(jurisdiction,type,shortName,version);
+	}
+
+	public void updateDocument(String jurisdiction,String type,String shortName,ComplianceDocument inDoc) throws Exception {
+		try {
+			database.updateDocument(jurisdiction,type,shortName,inDoc);
+		} finally {
+			// a new version changes the replacedBy of the previous one so drop every version of the document
+			invalidate(jurisdiction,type,shortName);
+		}
+		precomputeDiff(jurisdiction,type,shortName,inDoc.getVersion());
+	}
+
+	//drops any diffs still to be worked out, for when the service is undeployed
+	public void close() {
+		precompute.shutdownNow();
+	}
+
+	private void precomputeDiff(final String jurisdiction,final String type,final String shortName,final String version) {
+		try {
+			precompute.submit(() -> {
+				try {
+					ComplianceDocument document=getReadOnlyDocument(baseURI,jurisdiction,type,shortName,version);
+					if (document==null || !document.hasMetaData("dcterms:replaces")) return;
+					String previousVersion=document.getMetaDataString("dcterms:replaces");
+					getDiff(baseURI,jurisdiction,type,shortName,version,previousVersion);
+					LOGGER.info("Precomputed diff of "+documentKey(jurisdiction,type,shortName)+version+" against "+previousVersion);
+				} catch (RuntimeException e) {
+					LOGGER.error("Precomputing diff failed:"+e.getMessage());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			//closed, the diff is worked out when it is first asked for
+		}
+	}
+
+	public void invalidate(String jurisdiction,String type,String shortName) {
+		final String prefix=documentKey(jurisdiction,type,shortName);
+		generation.incrementAndGet();
+		documentLoads.forget(key -> key.startsWith(prefix));
+		diffLoads.forget(key -> key.startsWith(prefix));
+		versionLoads.forget(key -> key.equals(prefix));
+		synchronized (documents) {
+			Iterator<String> keys=documents.keySet().iterator();
+			while (keys.hasNext()) {
+				if (keys.next().startsWith(prefix)) keys.remove();
+			}
+		}
+		synchronized (diffs) {
+			Iterator<String> keys=diffs.keySet().iterator();
+			while (keys.hasNext()) {
+				if (keys.next().startsWith(prefix)) keys.remove();
+			}
+		}
+		LOGGER.info("Invalidated cached versions of "+prefix);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getDiffHits() {
+		return diffHits.get();
+	}
+
+	public long getDiffMisses() {
+		return diffMisses.get();
+	}
+
+	public long getLoads() {
+		return documentLoads.getLoads()+diffLoads.getLoads()+versionLoads.getLoads();
+	}
+
+	//callers that shared a load already running for someone else
+	public long getCoalesced() {
+		return documentLoads.getCoalesced()+diffLoads.getCoalesced()+versionLoads.getCoalesced();
+	}
+
+	public int getSize() {
+		synchronized (documents) {
+			return documents.size();
+		}
+	}
+}
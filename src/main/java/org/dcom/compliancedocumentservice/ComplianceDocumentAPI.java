@@ -20,6 +20,7 @@ package org.dcom.compliancedocumentservice;
 
 import javax.ws.rs.Path;
 import javax.inject.Inject;
+import javax.inject.Named;
 import org.dcom.core.servicehelper.ServiceBaseInfo;
 import org.dcom.core.servicehelper.UserAuthorisationValidator;
 import javax.ws.rs.GET;
@@ -34,15 +35,19 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import java.util.ArrayList;
-import org.dcom.core.compliancedocument.serialisers.JSONComplianceDocumentSerialiser;
-import org.dcom.core.compliancedocument.serialisers.XMLComplianceDocumentSerialiser;
 import org.dcom.core.compliancedocument.deserialisers.JSONComplianceDocumentDeserialiser;
 import org.dcom.core.compliancedocument.deserialisers.XMLComplianceDocumentDeserialiser;
 import org.dcom.core.compliancedocument.ComplianceDocument;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.StreamingOutput;
+import java.util.function.Supplier;
 
 /**
 *This is the implementation of the REST API for the compliance document service
@@ -60,6 +65,25 @@ public class ComplianceDocumentAPI {
 
 	@Inject
 	public ServiceBaseInfo serviceInfo;
+
+	@Inject
+	public ComplianceDocumentResponseCache responseCache;
+
+	@Inject
+	@Named("index")
+	public ComplianceDocumentExecutor indexExecutor;
+
+	@Inject
+	@Named("document")
+	public ComplianceDocumentExecutor documentExecutor;
+
+	//uploads are never timed out, once a write has started the client is told how it went
+	@Inject
+	@Named("write")
+	public ComplianceDocumentExecutor writeExecutor;
+
+	@Inject
+	public ComplianceDocumentWarmup warmup;
 	
 	//utility functions
 	
@@ -69,6 +93,10 @@ public class ComplianceDocumentAPI {
 	
 	
 	private String generateURL() {
+		return generateURL(serviceInfo);
+	}
+	
+	public static String generateURL(ServiceBaseInfo serviceInfo) {
 		String prefix="http";
 		String port = serviceInfo.getProperty(ServiceBaseInfo.PORT);
 		String hostName = serviceInfo.getProperty(ServiceBaseInfo.HOSTNAME);
@@ -85,25 +113,65 @@ public class ComplianceDocumentAPI {
 		return authenticator.validatePermission(token,"editor");
 	}
 	
-	private ComplianceDocument manipulateDocument(ComplianceDocument doc, UriInfo contextInfo,String jurisdiction,String type,String shortName) {
+	private ComplianceDocument loadDocument(UriInfo contextInfo,String jurisdiction,String type,String shortName,String version) {
 			MultivaluedMap<String,String> queryParams=contextInfo.getQueryParameters();
+			String diff=null;
+			String query=null;
+			String images=null;
 			if (queryParams!=null && queryParams.keySet().size() >= 1) {
-						String query=queryParams.getFirst("diff");
-						String path="";
-						if (query!=null) {
-							ComplianceDocument document = database.getDocument(generateURL(),jurisdiction,type,shortName,query);
-							doc=ComplianceDocumentDiff.diff(doc,document);
-						}
-						query=queryParams.getFirst("query");
-						if (query!=null) {
-							if (query.equals("structure")){
-								doc=ComplianceDocumentFilter.filterBodies(doc);
-							}
-						}
+				diff=queryParams.getFirst("diff");
+				query=queryParams.getFirst("query");
+				images=queryParams.getFirst("images");
+			}
+			ComplianceDocument doc;
+			if (diff!=null) {
+				doc=database.getDiff(generateURL(),jurisdiction,type,shortName,version,diff);
+			} else if (query!=null && query.equals("structure")) {
+				//the outline alone is read, bodies and inserts never leave the database
+				return database.getDocument(generateURL(),jurisdiction,type,shortName,version,ComplianceDocumentLoadOptions.STRUCTURE);
+			} else if (query==null && images!=null && images.equals("lazy")) {
+				//figures only carry their dcom:imageHash, the images are fetched from /_figures
+				return database.getDocument(generateURL(),jurisdiction,type,shortName,version,ComplianceDocumentLoadOptions.LAZY_IMAGES);
+			} else {
+				doc=database.getReadOnlyDocument(generateURL(),jurisdiction,type,shortName,version);
+			}
+			if (query!=null) {
+				if (query.equals("structure")){
+					doc=ComplianceDocumentFilter.filterBodies(doc);
+				}
 			}
 			return doc;
 	}
 	
+	// a plain reference only needs its own part of the document read, diffs and structure views are worked out over the whole document first
+	private ComplianceDocument loadFragment(UriInfo contextInfo,String jurisdiction,String type,String shortName,String version,String documentReference) {
+			MultivaluedMap<String,String> queryParams=contextInfo.getQueryParameters();
+			if (queryParams==null || (queryParams.getFirst("diff")==null && queryParams.getFirst("query")==null)) {
+				return database.getDocumentFragment(generateURL(),jurisdiction,type,shortName,version,documentReference);
+			}
+			return ComplianceDocumentFilter.filterPath(loadDocument(contextInfo,jurisdiction,type,shortName,version),documentReference);
+	}
+	
+	// the rendered form is cached here until the document is next uploaded, a versioned document can still change (a newer version sets its dcterms:replacedBy, or it is uploaded again) so clients always revalidate by ETag
+	// on a miss the response is streamed and kept as it goes, the ETag is only known once it has all been written so that first response goes without one
+	private Response cachedResponse(UriInfo info,Request request,String mediaType,Supplier<StreamingOutput> render) {
+		String key=ComplianceDocumentResponseCache.key(info.getPath(),mediaType,info.getQueryParameters());
+		ComplianceDocumentResponseCache.CachedResponse cached=responseCache.get(key);
+		if (cached==null) {
+			long generation=responseCache.getGeneration();
+			return Response.ok(responseCache.fill(key,render.get(),generation),mediaType).header("Cache-Control","no-cache").build();
+		}
+		EntityTag tag=new EntityTag(cached.getETag());
+		Response.ResponseBuilder builder=request.evaluatePreconditions(tag);
+		if (builder==null) builder=Response.ok(cached.getBody(),mediaType);
+		return builder.tag(tag).header("Cache-Control","no-cache").build();
+	}
+	
+	private void storeDocument(String jurisdiction,String type,String shortName,ComplianceDocument document) throws Exception {
+		database.updateDocument(jurisdiction,type,shortName,document);
+		responseCache.invalidate(jurisdiction,type,shortName);
+	}
+	
 	private String generateVersionString() {
 		return dateFormat.format(new Date());
 	}
@@ -119,151 +187,142 @@ public class ComplianceDocumentAPI {
 	@GET
 	@Path("/")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response serviceInfoJSON() {
-		StringBuffer str=new StringBuffer();
-		str.append("{");
-		str.append(serviceInfo.toJSONContent());
-		str.append(",\"documentList\":[");
-		ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex();
-		for (int i=0; i < documents.size();i++) {
-			if (i!=0) str.append(",");
-			str.append(documents.get(i).toJSONContent());
-		}
-		str.append("]}");
-		return  Response.ok(str.toString()).build();
+	public void serviceInfoJSON(@Context UriInfo info,@Context Request request,@Suspended final AsyncResponse asyncResponse) {
+		indexExecutor.submit(asyncResponse,() -> {
+			//the listing changes whenever a document is uploaded so it is only cached until then
+			return cachedResponse(info,request,MediaType.APPLICATION_JSON,() -> {
+				ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex();
+				return ComplianceDocumentStreamingOutput.jsonIndex("{"+serviceInfo.toJSONContent()+",\"documentList\":[",documents,"]}");
+			});
+		});
 	}
 	
 	@GET
 	@Path("/")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response serviceInfoXML() {
-		StringBuffer str=new StringBuffer();
-		str.append("<ServerIdentity>");
-		str.append(serviceInfo.toXMLContent());
-		str.append("<DocumentList>");
-		ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex();
-		for (int i=0; i < documents.size();i++) {
-			str.append(documents.get(i).toXMLContent());
-		}
-		str.append("</DocumentList>");
-		str.append("</ServerIdentity>");
-		return  Response.ok(str.toString()).build();
+	public void serviceInfoXML(@Context UriInfo info,@Context Request request,@Suspended final AsyncResponse asyncResponse) {
+		indexExecutor.submit(asyncResponse,() -> {
+			return cachedResponse(info,request,MediaType.APPLICATION_XML,() -> {
+				ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex();
+				return ComplianceDocumentStreamingOutput.xmlIndex("<ServerIdentity>"+serviceInfo.toXMLContent()+"<DocumentList>",documents,"</DocumentList></ServerIdentity>");
+			});
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response jurisdictionJSON(@PathParam("jurisdiction") String jurisdiction) {
-			ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction);
-			StringBuffer str=new StringBuffer();
-			str.append("[");
-			for (int i=0; i < documents.size();i++) {
-				if (i!=0) str.append(",");
-				str.append(documents.get(i).toJSONContent());
-			}
-			str.append("]");
-			return  Response.ok(str.toString()).build();
+	public void jurisdictionJSON(@PathParam("jurisdiction") String jurisdiction,@Suspended final AsyncResponse asyncResponse) {
+		indexExecutor.submit(asyncResponse,() -> {
+				ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction);
+				return  Response.ok(ComplianceDocumentStreamingOutput.jsonIndex("[",documents,"]")).build();
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response jurisdictionXML(@PathParam("jurisdiction") String jurisdiction) {
-		ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction);
-		StringBuffer str=new StringBuffer();
-		str.append("<DocumentList>");
-		for (int i=0; i < documents.size();i++) {
-			str.append(documents.get(i).toXMLContent());
-		}
-		str.append("</DocumentList>");
-		return  Response.ok(str.toString()).build();
+	public void jurisdictionXML(@PathParam("jurisdiction") String jurisdiction,@Suspended final AsyncResponse asyncResponse) {
+		indexExecutor.submit(asyncResponse,() -> {
+			ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction);
+			return  Response.ok(ComplianceDocumentStreamingOutput.xmlIndex("<DocumentList>",documents,"</DocumentList>")).build();
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response jurisdictionTypeXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type) {
-		ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction,type);
-		StringBuffer str=new StringBuffer();
-		str.append("<DocumentList>");
-		for (int i=0; i < documents.size();i++) {
-			str.append(documents.get(i).toXMLContent());
-		}
-		str.append("</DocumentList>");
-		return  Response.ok(str.toString()).build();
+	public void jurisdictionTypeXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@Suspended final AsyncResponse asyncResponse) {
+		indexExecutor.submit(asyncResponse,() -> {
+			ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction,type);
+			return  Response.ok(ComplianceDocumentStreamingOutput.xmlIndex("<DocumentList>",documents,"</DocumentList>")).build();
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response jurisdictionTypeJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type) {
-		ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction,type);
-		StringBuffer str=new StringBuffer();
-		str.append("[");
-		for (int i=0; i < documents.size();i++) {
-			if (i!=0) str.append(",");
-			str.append(documents.get(i).toJSONContent());
-		}
-		str.append("]");
-		return  Response.ok(str.toString()).build();
+	public void jurisdictionTypeJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@Suspended final AsyncResponse asyncResponse) {
+		indexExecutor.submit(asyncResponse,() -> {
+			ArrayList<ComplianceDocumentIndexItem> documents=database.getDocumentIndex(jurisdiction,type);
+			return  Response.ok(ComplianceDocumentStreamingOutput.jsonIndex("[",documents,"]")).build();
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}/{shortName}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response jurisdictionTypeShortNameJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@Context UriInfo info) {
-			String latestVersion=database.getLatestVersion(jurisdiction,type,shortName);
-			ComplianceDocument document=database.getDocument(generateURL(),jurisdiction,type,shortName,latestVersion);
-			document=manipulateDocument(document,info,jurisdiction,type,shortName);
-			return  Response.ok(JSONComplianceDocumentSerialiser.serialise(document)).build();
+	public void jurisdictionTypeShortNameJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@Context UriInfo info,@Suspended final AsyncResponse asyncResponse) {
+		warmup.record(jurisdiction,type,shortName);
+		documentExecutor.submit(asyncResponse,() -> {
+				String latestVersion=database.getLatestVersion(jurisdiction,type,shortName);
+				ComplianceDocument document=loadDocument(info,jurisdiction,type,shortName,latestVersion);
+				return  Response.ok(ComplianceDocumentStreamingOutput.json(document)).build();
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}/{shortName}/{version}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response shortNameVersionJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@Context UriInfo info) {
-		ComplianceDocument document=database.getDocument(generateURL(),jurisdiction,type,shortName,version);
-		document=manipulateDocument(document,info,jurisdiction,type,shortName);
-		return  Response.ok(JSONComplianceDocumentSerialiser.serialise(document)).build();
+	public void shortNameVersionJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@Context UriInfo info,@Context Request request,@Suspended final AsyncResponse asyncResponse) {
+		warmup.record(jurisdiction,type,shortName);
+		documentExecutor.submit(asyncResponse,() -> {
+			return cachedResponse(info,request,MediaType.APPLICATION_JSON,() -> {
+				ComplianceDocument document=loadDocument(info,jurisdiction,type,shortName,version);
+				return ComplianceDocumentStreamingOutput.json(document);
+			});
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}/{shortName}/{version}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response shortNameVersionXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@Context UriInfo info) {
-		ComplianceDocument document=database.getDocument(generateURL(),jurisdiction,type,shortName,version);
-		document=manipulateDocument(document,info,jurisdiction,type,shortName);
-		return  Response.ok(XMLComplianceDocumentSerialiser.serialise(document)).build();
+	public void shortNameVersionXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@Context UriInfo info,@Context Request request,@Suspended final AsyncResponse asyncResponse) {
+		warmup.record(jurisdiction,type,shortName);
+		documentExecutor.submit(asyncResponse,() -> {
+			return cachedResponse(info,request,MediaType.APPLICATION_XML,() -> {
+				ComplianceDocument document=loadDocument(info,jurisdiction,type,shortName,version);
+				return ComplianceDocumentStreamingOutput.xml(document);
+			});
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}/{shortName}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response jurisdictionTypeShortNameXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@Context UriInfo info) {
-		String latestVersion=database.getLatestVersion(jurisdiction,type,shortName);
-		ComplianceDocument document=database.getDocument(generateURL(),jurisdiction,type,shortName,latestVersion);
-		document=manipulateDocument(document,info,jurisdiction,type,shortName);
-		return  Response.ok(XMLComplianceDocumentSerialiser.serialise(document)).build();
+	public void jurisdictionTypeShortNameXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@Context UriInfo info,@Suspended final AsyncResponse asyncResponse) {
+		warmup.record(jurisdiction,type,shortName);
+		documentExecutor.submit(asyncResponse,() -> {
+			String latestVersion=database.getLatestVersion(jurisdiction,type,shortName);
+			ComplianceDocument document=loadDocument(info,jurisdiction,type,shortName,latestVersion);
+			return  Response.ok(ComplianceDocumentStreamingOutput.xml(document)).build();
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}/{shortName}/{version}/{documentReference:.+}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response fullQueryJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@PathParam("documentReference") String documentReference,@Context UriInfo info) {
-		ComplianceDocument document=database.getDocument(generateURL(),jurisdiction,type,shortName,version);
-		document=manipulateDocument(document,info,jurisdiction,type,shortName);
-		document=ComplianceDocumentFilter.filterPath(document,documentReference);
-		return  Response.ok(JSONComplianceDocumentSerialiser.serialise(document)).build();
+	public void fullQueryJSON(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@PathParam("documentReference") String documentReference,@Context UriInfo info,@Context Request request,@Suspended final AsyncResponse asyncResponse) {
+		warmup.record(jurisdiction,type,shortName);
+		documentExecutor.submit(asyncResponse,() -> {
+			return cachedResponse(info,request,MediaType.APPLICATION_JSON,() -> {
+				ComplianceDocument document=loadFragment(info,jurisdiction,type,shortName,version,documentReference);
+				return ComplianceDocumentStreamingOutput.json(document);
+			});
+		});
 	}
 	
 	@GET
 	@Path("/{jurisdiction}/{type}/{shortName}/{version}/{documentReference:.+}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response fullQueryXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@PathParam("documentReference") String documentReference,@Context UriInfo info) {
-		ComplianceDocument document=database.getDocument(generateURL(),jurisdiction,type,shortName,version);
-		document=manipulateDocument(document,info,jurisdiction,type,shortName);
-		document=ComplianceDocumentFilter.filterPath(document,documentReference);
-		return  Response.ok(XMLComplianceDocumentSerialiser.serialise(document)).build();
+	public void fullQueryXML(@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@PathParam("documentReference") String documentReference,@Context UriInfo info,@Context Request request,@Suspended final AsyncResponse asyncResponse) {
+		warmup.record(jurisdiction,type,shortName);
+		documentExecutor.submit(asyncResponse,() -> {
+			return cachedResponse(info,request,MediaType.APPLICATION_XML,() -> {
+				ComplianceDocument document=loadFragment(info,jurisdiction,type,shortName,version,documentReference);
+				return ComplianceDocumentStreamingOutput.xml(document);
+			});
+		});
 	}
 	
 	// all updating functions
@@ -272,107 +331,131 @@ public class ComplianceDocumentAPI {
 	@Path("/{jurisdiction}/{type}/{shortName}")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response uploadShortNameJSON(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,String body) {
-		if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
-		try {
-			ComplianceDocument document=JSONComplianceDocumentDeserialiser.parseComplianceDocument(body);
-			document.setVersion(generateVersionString());
-			database.updateDocument(jurisdiction,type,shortName,document);
-			return Response.ok(successMessageJSON).build();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return Response.status(500).build();
+	public void uploadShortNameJSON(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,String body,@Suspended final AsyncResponse asyncResponse) {
+		writeExecutor.submit(asyncResponse,() -> {
+			if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
+			try {
+				ComplianceDocument document=JSONComplianceDocumentDeserialiser.parseComplianceDocument(body);
+				document.setVersion(generateVersionString());
+				storeDocument(jurisdiction,type,shortName,document);
+				return Response.ok(successMessageJSON).build();
+			} catch (ComplianceDocumentDatabaseUnavailableException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return Response.status(500).build();
 
+		});
 	}
 	
 	@PUT
 	@Path("/{jurisdiction}/{type}/{shortName}")
 	@Produces(MediaType.APPLICATION_XML)
 	@Consumes(MediaType.APPLICATION_XML)
-	public Response uploadShortNameXML(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,String body) {
-		if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
-		try {
-			ComplianceDocument document=XMLComplianceDocumentDeserialiser.parseComplianceDocument(body);
-			document.setVersion(generateVersionString());
-			database.updateDocument(jurisdiction,type,shortName,document);
-			return Response.ok(successMessageXML).build();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return Response.status(500).build();
+	public void uploadShortNameXML(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,String body,@Suspended final AsyncResponse asyncResponse) {
+		writeExecutor.submit(asyncResponse,() -> {
+			if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
+			try {
+				ComplianceDocument document=XMLComplianceDocumentDeserialiser.parseComplianceDocument(body);
+				document.setVersion(generateVersionString());
+				storeDocument(jurisdiction,type,shortName,document);
+				return Response.ok(successMessageXML).build();
+			} catch (ComplianceDocumentDatabaseUnavailableException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return Response.status(500).build();
+		});
 	}
 	
 	@PUT
 	@Path("/{jurisdiction}/{type}/{shortName}/{version}")
 	@Produces(MediaType.APPLICATION_XML)
 	@Consumes(MediaType.APPLICATION_XML)
-	public Response uploadShortNameVersionXML(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,String body) {
-		if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
-		try {
-			ComplianceDocument document=XMLComplianceDocumentDeserialiser.parseComplianceDocument(body);
-			document.setVersion(version);			
-			database.updateDocument(jurisdiction,type,shortName,document);
-			return Response.ok(successMessageXML).build();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return Response.status(500).build();
+	public void uploadShortNameVersionXML(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,String body,@Suspended final AsyncResponse asyncResponse) {
+		writeExecutor.submit(asyncResponse,() -> {
+			if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
+			try {
+				ComplianceDocument document=XMLComplianceDocumentDeserialiser.parseComplianceDocument(body);
+				document.setVersion(version);			
+				storeDocument(jurisdiction,type,shortName,document);
+				return Response.ok(successMessageXML).build();
+			} catch (ComplianceDocumentDatabaseUnavailableException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return Response.status(500).build();
+		});
 	}
 	
 	@PUT
 	@Path("/{jurisdiction}/{type}/{shortName}/{version}")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response uploadShortNameVersionJSON(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,String body) {
-		if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
-		try {
-			ComplianceDocument document=JSONComplianceDocumentDeserialiser.parseComplianceDocument(body);
-			document.setVersion(version);
-			database.updateDocument(jurisdiction,type,shortName,document);
-			return Response.ok(successMessageJSON).build();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return Response.status(500).build();
+	public void uploadShortNameVersionJSON(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,String body,@Suspended final AsyncResponse asyncResponse) {
+		writeExecutor.submit(asyncResponse,() -> {
+			if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
+			try {
+				ComplianceDocument document=JSONComplianceDocumentDeserialiser.parseComplianceDocument(body);
+				document.setVersion(version);
+				storeDocument(jurisdiction,type,shortName,document);
+				return Response.ok(successMessageJSON).build();
+			} catch (ComplianceDocumentDatabaseUnavailableException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return Response.status(500).build();
+		});
 	}
 	
 	@PUT
 	@Path("/{jurisdiction}/{type}/{shortName}/{version}/{documentReference:.+}")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response uploadFullJSON(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@PathParam("documentReference") String documentReference,String body,@Context UriInfo info) {
-		if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
-		try {
-			ComplianceDocument document=JSONComplianceDocumentDeserialiser.parseComplianceDocument(body);
-			document.setVersion(version);
-			document=ComplianceDocumentUpdater.update(getPreviousVersion(database,jurisdiction,type,shortName),documentReference,document);
-			document.setVersion(version);
-			database.updateDocument(jurisdiction,type,shortName,document);
-			return Response.ok(successMessageJSON).build();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return Response.status(500).build();
-	}
-	
-	@PUT
-	@Path("/{jurisdiction}/{type}/{shortName}/{version}/{documentReference:.+}")
-	@Produces(MediaType.APPLICATION_XML)
-	@Consumes(MediaType.APPLICATION_XML)
-	public Response uploadFullXML(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("version") String version,@PathParam("shortName") String shortName,@PathParam("documentReference") String documentReference,String body,@Context UriInfo info) {
+	public void uploadFullJSON(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("shortName") String shortName,@PathParam("version") String version,@PathParam("documentReference") String documentReference,String body,@Context UriInfo info,@Suspended final AsyncResponse asyncResponse) {
+		writeExecutor.submit(asyncResponse,() -> {
 			if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
 			try {
-				ComplianceDocument document=XMLComplianceDocumentDeserialiser.parseComplianceDocument(body);
+				ComplianceDocument document=JSONComplianceDocumentDeserialiser.parseComplianceDocument(body);
 				document.setVersion(version);
 				document=ComplianceDocumentUpdater.update(getPreviousVersion(database,jurisdiction,type,shortName),documentReference,document);
 				document.setVersion(version);
-				database.updateDocument(jurisdiction,type,shortName,document);
-				return Response.ok(successMessageXML).build();
+				storeDocument(jurisdiction,type,shortName,document);
+				return Response.ok(successMessageJSON).build();
+			} catch (ComplianceDocumentDatabaseUnavailableException e) {
+				throw e;
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 			return Response.status(500).build();
+		});
+	}
+	
+	@PUT
+	@Path("/{jurisdiction}/{type}/{shortName}/{version}/{documentReference:.+}")
+	@Produces(MediaType.APPLICATION_XML)
+	@Consumes(MediaType.APPLICATION_XML)
+	public void uploadFullXML(@HeaderParam("Authorization") String token,@PathParam("jurisdiction") String jurisdiction,@PathParam("type") String type,@PathParam("version") String version,@PathParam("shortName") String shortName,@PathParam("documentReference") String documentReference,String body,@Context UriInfo info,@Suspended final AsyncResponse asyncResponse) {
+		writeExecutor.submit(asyncResponse,() -> {
+				if (!authorize(token)) return Response.status(403).type("text/plain").entity("Not Authorised").build();
+				try {
+					ComplianceDocument document=XMLComplianceDocumentDeserialiser.parseComplianceDocument(body);
+					document.setVersion(version);
+					document=ComplianceDocumentUpdater.update(getPreviousVersion(database,jurisdiction,type,shortName),documentReference,document);
+					document.setVersion(version);
+					storeDocument(jurisdiction,type,shortName,document);
+					return Response.ok(successMessageXML).build();
+				} catch (ComplianceDocumentDatabaseUnavailableException e) {
+					throw e;
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				return Response.status(500).build();
+		});
 	}
 
 }
@@ -0,0 +1,138 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import org.dcom.core.compliancedocument.*;
+import java.util.ArrayList;
+
+/**
+*This helper class produces independent deep copies of compliance documents so that a shared (e.g. cached) document can be handed to code that modifies it.
+*
+*/
+public class ComplianceDocumentCopier {
+
+		public static ComplianceDocument copy(ComplianceDocument document) {
+			if (document==null) return null;
+			ComplianceDocument copy=new ComplianceDocument();
+			copyMetaData(document,copy);
+			for (int i=0; i < document.getNoSections();i++) copy.addSection(copySection(document.getSection(i),copy));
+			return copy;
+		}
+
+		public static ComplianceItem copyItem(ComplianceItem item,ComplianceItem parent) {
+			if (item instanceof Section) return copySection((Section)item,parent);
+			if (item instanceof Paragraph) return copyParagraph((Paragraph)item,parent);
+			if (item instanceof Insert) return copyInsert((Insert)item,parent);
+			if (item instanceof Rule) return copyRule((Rule)item,parent);
+			return null;
+		}
+
+		public static Section copySection(Section s,ComplianceItem parent) {
+			Section copy=copySectionShell(s,parent);
+			for (int i=0; i < s.getNoSubItems();i++) {
+				ComplianceItem item=s.getSubItem(i);
+				if (item instanceof Section) copy.addSection(copySection((Section)item,copy));
+				else if (item instanceof Paragraph) copy.addParagraph(copyParagraph((Paragraph)item,copy));
+			}
+			return copy;
+		}
+
+		// copies a section without any of its sections or paragraphs
+		public static Section copySectionShell(Section s,ComplianceItem parent) {
+			Section copy=new Section(parent);
+			copyMetaData(s,copy);
+			if (s.hasNumber()) copy.setNumber(s.getNumber());
+			copy.setHighestParaNumber(s.getHighestParaNumber());
+			return copy;
+		}
+
+		public static Paragraph copyParagraph(Paragraph p,ComplianceItem parent) {
+			Paragraph copy=copyParagraphShell(p,parent);
+			for (int i=0; i < p.getNoSubItems();i++) {
+				ComplianceItem item=p.getSubItem(i);
+				if (item instanceof Paragraph) copy.addParagraph(copyParagraph((Paragraph)item,copy));
+				else if (item instanceof Insert) copy.addInsert(copyInsert((Insert)item,copy));
+			}
+			return copy;
+		}
+
+		// copies a paragraph with its body and rules but without any sub paragraphs or inserts
+		public static Paragraph copyParagraphShell(Paragraph p,ComplianceItem parent) {
+			Paragraph copy=new Paragraph(parent);
+			copyMetaData(p,copy);
+			if (p.hasNumber()) copy.setNumber(p.getNumber());
+			if (p.getBodyText()!=null) copy.setBodyText(p.getBodyText());
+			for (int i=0; i < p.getNoRules();i++) copy.addRule(copyRule(p.getRule(i),copy));
+			return copy;
+		}
+
+		public static Insert copyInsert(Insert i,ComplianceItem parent) {
+			if (i==null) return null;
+			if (i instanceof Figure) {
+				Figure f=new Figure(parent);
+				copyMetaData(i,f);
+				f.setImageData(((Figure)i).getImageDataString());
+				return f;
+			}
+			Table t=(Table)i;
+			Table copy=new Table(parent);
+			copyMetaData(t,copy);
+			if (t.getHeader()!=null) copy.setHeader(copyTableGroup(t.getHeader(),new TableHeader(copy)));
+			if (t.getFooter()!=null) copy.setFooter(copyTableGroup(t.getFooter(),new TableFooter(copy)));
+			if (t.getBody()!=null) copy.setBody(copyTableGroup(t.getBody(),new TableBody(copy)));
+			return copy;
+		}
+
+		private static <T extends TableGroup> T copyTableGroup(TableGroup tg,T copy) {
+			copyMetaData(tg,copy);
+			for (int i=0; i < tg.getNoRows();i++) {
+				Row row=tg.getRow(i);
+				Row rowCopy=new Row(copy);
+				copyMetaData(row,rowCopy);
+				copy.addRow(rowCopy);
+				for (int x=0; x < row.getNoCells();x++) {
+					Cell cell=row.getCell(x);
+					Cell cellCopy;
+					if (cell instanceof TitleCell) cellCopy=new TitleCell(rowCopy);
+					else cellCopy=new DataCell(rowCopy);
+					copyMetaData(cell,cellCopy);
+					rowCopy.addCell(cellCopy);
+				}
+			}
+			return copy;
+		}
+
+		private static Rule copyRule(Rule r,ComplianceItem parent) {
+			Rule copy=new Rule(parent);
+			copyMetaData(r,copy);
+			return copy;
+		}
+
+		public static void copyMetaData(ComplianceItem from,ComplianceItem to) {
+			for (String mD: from.getMetaDataList()) {
+				if (to.hasMetaData(mD)) to.removeMetaData(mD);
+				if (from.isListMetadata(mD)) {
+					ArrayList<String> values=from.getMetaDataList(mD);
+					for (String value: values) to.setMetaData(mD,value);
+				} else {
+					to.setMetaData(mD,from.getMetaDataString(mD));
+				}
+			}
+		}
+}
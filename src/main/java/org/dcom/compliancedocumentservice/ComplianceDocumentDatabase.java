@@ -31,8 +31,18 @@ public interface ComplianceDocumentDatabase {
 	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex();
 	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction);
 	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction,String type);
+	//the index entry of one document, or null if there is no such document
+	public ComplianceDocumentIndexItem getDocumentIndexItem(String jurisdiction,String type,String shortName);
 	public String getLatestVersion(String jurisdiction,String type,String shortName);
 	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version);
+	//reads only the parts of the version the options ask for
+	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version,ComplianceDocumentLoadOptions options);
+	//the returned document may be shared with other callers so must not be modified
+	public ComplianceDocument getReadOnlyDocument(String baseURI,String jurisdiction,String type,String shortName,String version);
+	//the version marked up with its differences from previousVersion, the returned document may be shared with other callers so must not be modified
+	public ComplianceDocument getDiff(String baseURI,String jurisdiction,String type,String shortName,String version,String previousVersion);
+	//only the part of the version documentReference refers to, as ComplianceDocumentFilter.filterPath would give it
+	public ComplianceDocument getDocumentFragment(String baseURI,String jurisdiction,String type,String shortName,String version,String documentReference);
 	public boolean checkVersionExists(String jurisdiction,String type,String shortName,String version);
 	public void updateDocument(String jurisdiction,String type,String shortName,ComplianceDocument inDoc) throws Exception;
 
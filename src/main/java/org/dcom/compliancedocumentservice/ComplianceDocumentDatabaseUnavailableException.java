@@ -0,0 +1,54 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+*Thrown when a request cannot currently be served (e.g. the database connection pool is exhausted, or the request executors are full or too slow). The nested Mapper turns it into a 503 so clients know to retry.
+*
+*/
+public class ComplianceDocumentDatabaseUnavailableException extends RuntimeException {
+
+	//seconds a client is asked to wait before retrying
+	private static final int RETRY_AFTER=1;
+
+	public ComplianceDocumentDatabaseUnavailableException(String message) {
+		super(message);
+	}
+
+	public ComplianceDocumentDatabaseUnavailableException(String message,Throwable cause) {
+		super(message,cause);
+	}
+
+	/**
+	*Maps the exception onto a 503 Service Unavailable response
+	*
+	*/
+	@Provider
+	public static class Mapper implements ExceptionMapper<ComplianceDocumentDatabaseUnavailableException> {
+
+		@Override
+		public Response toResponse(ComplianceDocumentDatabaseUnavailableException e) {
+			return Response.status(503).header("Retry-After",RETRY_AFTER).type("text/plain").entity("Service Busy").build();
+		}
+	}
+}
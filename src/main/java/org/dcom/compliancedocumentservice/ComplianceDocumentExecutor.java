@@ -0,0 +1,127 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This runs the work of suspended requests on a bounded pool of its own so that container threads are handed back straight away rather than waiting on the database.
+*Work that finds the queue full, or that has not finished within the timeout, is answered with a 503 through ComplianceDocumentDatabaseUnavailableException so clients know to retry, and work that times out before it has started is dropped. Separate executors keep cheap index requests from queuing behind document loads.
+*
+*/
+public class ComplianceDocumentExecutor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( ComplianceDocumentExecutor.class );
+
+	private String name;
+	private ThreadPoolExecutor executor;
+	private long timeout;
+	private AtomicLong completed=new AtomicLong();
+	private AtomicLong rejected=new AtomicLong();
+	private AtomicLong timeouts=new AtomicLong();
+
+	public ComplianceDocumentExecutor(final String name,int threads,int queueSize,long timeout) {
+		this.name=name;
+		this.timeout=timeout;
+		final AtomicInteger count=new AtomicInteger();
+		executor=new ThreadPoolExecutor(threads,threads,60,TimeUnit.SECONDS,new ArrayBlockingQueue<Runnable>(queueSize),runnable -> {
+			Thread thread=new Thread(runnable,name+"-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	//resumes asyncResponse with what work returns, anything work throws goes to the exception mappers. a timeout of 0 or less never times out
+	public void submit(final AsyncResponse asyncResponse,final Supplier<Response> work) {
+		final AtomicReference<Future<?>> task=new AtomicReference<Future<?>>();
+		if (timeout > 0) {
+			asyncResponse.setTimeout(timeout,TimeUnit.MILLISECONDS);
+			asyncResponse.setTimeoutHandler(response -> {
+				timeouts.incrementAndGet();
+				LOGGER.warn(name+" request timed out after "+timeout+"ms");
+				response.resume(new ComplianceDocumentDatabaseUnavailableException(name+" request timed out"));
+				//work still queued is dropped, work already running is left to finish as interrupting it would break its OrientDB I/O and any single flight load other requests are waiting on
+				Future<?> running=task.get();
+				if (running!=null) running.cancel(false);
+			});
+		}
+		try {
+			task.set(executor.submit(() -> {
+				//it may have timed out while it was queued
+				if (asyncResponse.isDone()) return;
+				try {
+					asyncResponse.resume(work.get());
+				} catch (Throwable t) {
+					asyncResponse.resume(t);
+				} finally {
+					completed.incrementAndGet();
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			String reason=executor.isShutdown() ? "shut down" : "queue full";
+			LOGGER.warn(name+" "+reason+" with "+executor.getQueue().size()+" waiting");
+			asyncResponse.resume(new ComplianceDocumentDatabaseUnavailableException(name+" "+reason,e));
+		}
+	}
+
+	//stops taking work and gives the work already taken a few seconds to finish, for when the service is undeployed
+	public void close() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5,TimeUnit.SECONDS)) executor.shutdownNow();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getActive() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+}
@@ -0,0 +1,120 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import javax.ws.rs.Path;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+*This serves the raw bytes of figure images from the figure store, by the dcom:imageHash given on figures in documents. Single byte ranges are supported so large images can be fetched in parts or resumed.
+*Files are streamed from the store a block at a time rather than read into memory whole, the servlet output stream is not a file channel so each block is still copied through the JVM.
+*
+*/
+@Path("/_figures")
+public class ComplianceDocumentFigureAPI {
+
+	@Inject
+	public ComplianceDocumentFigureStore figureStore;
+
+	@GET
+	@Path("/{hash}")
+	public Response getFigure(@PathParam("hash") String hash,@HeaderParam("Range") String range,@Context Request request) {
+		if (!figureStore.contains(hash)) return Response.status(Response.Status.NOT_FOUND).build();
+		try {
+			final java.nio.file.Path path=figureStore.getPath(hash);
+			final long size=Files.size(path);
+			// the content never changes so the hash is its tag
+			EntityTag tag=new EntityTag(hash);
+			Response.ResponseBuilder notModified=request.evaluatePreconditions(tag);
+			if (notModified!=null) return notModified.header("Cache-Control","public, max-age=31536000, immutable").build();
+			String mediaType=getMediaType(path);
+
+			long start=0;
+			long end=size-1;
+			boolean partial=false;
+			String[] bounds=range!=null && range.startsWith("bytes=") && !range.contains(",") ? range.substring(6).trim().split("-",-1) : null;
+			//anything but a single start-end range, such as bytes=5, is ignored and the whole file sent
+			if (bounds!=null && bounds.length==2) {
+				try {
+					if (bounds[0].isEmpty()) {
+						//the last n bytes
+						start=Math.max(0,size-Long.parseLong(bounds[1]));
+					} else {
+						start=Long.parseLong(bounds[0]);
+						if (!bounds[1].isEmpty()) end=Math.min(size-1,Long.parseLong(bounds[1]));
+					}
+					partial=true;
+				} catch (NumberFormatException e) {
+					//a malformed range is ignored and the whole file sent
+					start=0;
+					end=size-1;
+				}
+				if (partial && (start > end || start >= size)) {
+					return Response.status(416).header("Content-Range","bytes */"+size).build();
+				}
+			}
+
+			final long from=start;
+			final long length=end-start+1;
+			StreamingOutput output=out -> {
+				try (FileChannel channel=FileChannel.open(path,StandardOpenOption.READ)) {
+					//this wraps the servlet stream so transferTo goes through a heap buffer, it only saves handling the range by hand
+					WritableByteChannel target=Channels.newChannel(out);
+					long sent=0;
+					while (sent < length) {
+						long n=channel.transferTo(from+sent,length-sent,target);
+						if (n <= 0) break;
+						sent+=n;
+					}
+				}
+				out.flush();
+			};
+			Response.ResponseBuilder response=partial ? Response.status(206).header("Content-Range","bytes "+start+"-"+end+"/"+size) : Response.ok();
+			//an uploaded svg can carry script, so nothing it refers to may load or run if it is opened directly
+			return response.entity(output).type(mediaType).header("Content-Length",length).header("Accept-Ranges","bytes").tag(tag).header("Cache-Control","public, max-age=31536000, immutable").header("Content-Security-Policy","default-src 'none'").header("X-Content-Type-Options","nosniff").build();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+	}
+
+	private static String getMediaType(java.nio.file.Path path) throws IOException {
+		byte[] start=new byte[16];
+		int read=0;
+		try (InputStream in=Files.newInputStream(path)) {
+			read=Math.max(0,in.read(start));
+		}
+		return ComplianceDocumentFigureStore.getMediaType(start,read);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This keeps the image data of figures as files on disk named by the SHA-256 hash of their content, so an image used by many figures or versions is only stored once. Files are never changed once written.
+*Only images given as plain base64 that encodes back to exactly the same text are stored here, anything else stays in the database so documents are always read back as they were written.
+*
+*/
+public class ComplianceDocumentFigureStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( ComplianceDocumentFigureStore.class );
+
+	private Path root;
+
+	public ComplianceDocumentFigureStore(String directory) throws IOException {
+		root=Paths.get(directory);
+		Files.createDirectories(root);
+	}
+
+	//the hash the image is stored under, or null if it cannot be stored exactly as given
+	public String put(String imageData) throws IOException {
+		if (imageData==null || imageData.isEmpty()) return null;
+		byte[] data;
+		try {
+			data=Base64.getDecoder().decode(imageData);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (!Base64.getEncoder().encodeToString(data).equals(imageData)) return null;
+		String hash=hash(data);
+		Path path=getPath(hash);
+		if (Files.exists(path)) return hash;
+		Files.createDirectories(path.getParent());
+		// written to one side first so a reader never sees part of a file
+		Path temp=Files.createTempFile(path.getParent(),hash,".tmp");
+		try {
+			Files.write(temp,data);
+			Files.move(temp,path,StandardCopyOption.ATOMIC_MOVE);
+			LOGGER.info("Stored figure "+hash+" of "+data.length+" bytes");
+		} catch (FileAlreadyExistsException e) {
+			//another writer stored the same image first
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return hash;
+	}
+
+	public String getImageData(String hash) throws IOException {
+		return Base64.getEncoder().encodeToString(Files.readAllBytes(getPath(hash)));
+	}
+
+	public boolean contains(String hash) {
+		return isHash(hash) && Files.isRegularFile(getPath(hash));
+	}
+
+	public long getSize(String hash) throws IOException {
+		return Files.size(getPath(hash));
+	}
+
+	//files are spread over directories by the first two characters of their hash
+	public Path getPath(String hash) {
+		if (!isHash(hash)) throw new IllegalArgumentException("Not a figure hash:"+hash);
+		return root.resolve(hash.substring(0,2)).resolve(hash);
+	}
+
+	//only lower case hex of the right length so a hash from a request can never name another file
+	public static boolean isHash(String hash) {
+		if (hash==null || hash.length()!=64) return false;
+		for (int i=0; i < hash.length();i++) {
+			char c=hash.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+		}
+		return true;
+	}
+
+	//the media type of an image from its first bytes
+	public static String getMediaType(byte[] start,int length) {
+		if (length >= 4 && (start[0]&0xff)==0x89 && start[1]=='P' && start[2]=='N' && start[3]=='G') return "image/png";
+		if (length >= 3 && (start[0]&0xff)==0xff && (start[1]&0xff)==0xd8 && (start[2]&0xff)==0xff) return "image/jpeg";
+		if (length >= 4 && start[0]=='G' && start[1]=='I' && start[2]=='F' && start[3]=='8') return "image/gif";
+		String text=new String(start,0,length,StandardCharsets.ISO_8859_1).trim();
+		if (text.startsWith("<svg") || text.startsWith("<?xml")) return "image/svg+xml";
+		return "application/octet-stream";
+	}
+
+	private static String hash(byte[] data) {
+		return ComplianceDocumentHashes.sha256(data);
+	}
+}
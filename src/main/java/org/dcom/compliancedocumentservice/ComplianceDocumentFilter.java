@@ -25,20 +25,24 @@ import org.dcom.core.compliancedocument.Section;
 import org.dcom.core.compliancedocument.Figure;
 import org.dcom.core.compliancedocument.Insert;
 import org.dcom.core.compliancedocument.Table;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import org.apache.commons.lang3.mutable.MutableInt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
 *This helper class filters a compliance document so only specific sections/clauses are returned.
+*The filtered view is built as a new document and the document passed in is never modified, so a single loaded (or cached) document can be shared between requests.
 *
 */
 public class ComplianceDocumentFilter {
-	
-	
-		private static void removeListed(ComplianceItem item,HashSet<ComplianceItem> toRemove) {
-			for (ComplianceItem i:toRemove) item.removeSubItem(i);
-		}
-		
+
+		private static final Logger LOGGER = LoggerFactory.getLogger( ComplianceDocumentFilter.class );
+
+		// what to do with an item that survives filtering
+		private static final Boolean WHOLE=Boolean.TRUE;
+		private static final Boolean FILTERED=Boolean.FALSE;
+
 		private static Insert findInsert(ComplianceItem current,Class insertType,int insertNumber,MutableInt insertCount) {
 			if (current instanceof Paragraph) {
 				Paragraph p=(Paragraph) current;
@@ -50,7 +54,7 @@ public class ComplianceDocumentFilter {
 						}
 				}
 			}
-		
+
 			for (int i=0; i < current.getNoSubItems();i++) {
 				ComplianceItem item=current.getSubItem(i);
 				Insert insert=findInsert(item,insertType,insertNumber,insertCount);
@@ -58,43 +62,85 @@ public class ComplianceDocumentFilter {
 			}
 			return null;
 		}
-		
+
+		private static ComplianceDocument copyDocumentShell(ComplianceDocument current) {
+			ComplianceDocument document=new ComplianceDocument();
+			ComplianceDocumentCopier.copyMetaData(current,document);
+			return document;
+		}
+
+		private static void addChild(ComplianceItem parent,ComplianceItem child) {
+			if (parent instanceof ComplianceDocument) ((ComplianceDocument)parent).addSection((Section)child);
+			else if (parent instanceof Section && child instanceof Section) ((Section)parent).addSection((Section)child);
+			else if (parent instanceof Section) ((Section)parent).addParagraph((Paragraph)child);
+			else if (child instanceof Paragraph) ((Paragraph)parent).addParagraph((Paragraph)child);
+			else ((Paragraph)parent).addInsert((Insert)child);
+		}
+
 		public static ComplianceDocument filterPath(ComplianceDocument current, String filterPath) {
 			if (filterPath.startsWith("/")) filterPath=filterPath.substring(1);
 			String[] pathArray=filterPath.split("/");
+			ComplianceDocument document=copyDocumentShell(current);
 			if (pathArray[0].equals("Figure") || pathArray[0].equals("Table")) {
 				int insertNumber=Integer.parseInt(pathArray[1]);
 				Insert insert=null;
 				if (pathArray[0].equals("Figure")) insert=findInsert(current,Figure.class,insertNumber,new MutableInt(0));
 				if (pathArray[0].equals("Table")) insert=findInsert(current,Table.class,insertNumber,new MutableInt(0));
-				Section s=new Section(current);
+				Section s=new Section(document);
 				Paragraph p=new Paragraph(s);
-				p.addInsert(insert);
+				p.addInsert(ComplianceDocumentCopier.copyInsert(insert,p));
 				s.addParagraph(p);
-				HashSet<ComplianceItem> sections=new HashSet<ComplianceItem>();
-				for (int i=0; i < current.getNoSections();i++) sections.add(current.getSection(i));
-				removeListed(current,sections);
-				current.addSection(s);
-				return current;
+				document.addSection(s);
+				return document;
 			} else {
 				//change the section number start to match the section filtered for
-				current.removeMetaData("dcom:startSectionNumber");
-				current.setMetaData("dcom:startSectionNumber",pathArray[0]);
+				document.removeMetaData("dcom:startSectionNumber");
+				document.setMetaData("dcom:startSectionNumber",pathArray[0]);
+			}
+			LOGGER.debug("Filtering For:"+filterPath);
+			//first work out what survives then copy only that
+			IdentityHashMap<ComplianceItem,Boolean> kept=findKept(current,pathArray);
+			for (int i=0; i < current.getNoSubItems();i++) {
+				ComplianceItem item=current.getSubItem(i);
+				if (kept.containsKey(item)) addChild(document,project(item,document,kept));
 			}
-			System.out.println("Filtering For:"+filterPath);
-			HashSet<ComplianceItem> toRemove=new HashSet<ComplianceItem>();
+			return document;
+		}
+
+		// every item of current that filtering for filterPath keeps, along with the items above them, not used for Figure/n and Table/n
+		public static IdentityHashMap<ComplianceItem,Boolean> findKept(ComplianceDocument current, String filterPath) {
+			if (filterPath.startsWith("/")) filterPath=filterPath.substring(1);
+			return findKept(current,filterPath.split("/"));
+		}
+
+		private static IdentityHashMap<ComplianceItem,Boolean> findKept(ComplianceDocument current, String[] pathArray) {
+			IdentityHashMap<ComplianceItem,Boolean> kept=new IdentityHashMap<ComplianceItem,Boolean>();
 			for (int i=0; i < current.getNoSubItems();i++) {
 				ComplianceItem item=current.getSubItem(i);
-				if (!match(item,0,pathArray)) toRemove.add(item);
+				if (match(item,0,pathArray,kept)) kept.putIfAbsent(item,FILTERED);
+			}
+			return kept;
+		}
+
+		private static ComplianceItem project(ComplianceItem item,ComplianceItem parent,IdentityHashMap<ComplianceItem,Boolean> kept) {
+			if (WHOLE.equals(kept.get(item)) || item instanceof Insert) return ComplianceDocumentCopier.copyItem(item,parent);
+			ComplianceItem copy;
+			if (item instanceof Section) copy=ComplianceDocumentCopier.copySectionShell((Section)item,parent);
+			else copy=ComplianceDocumentCopier.copyParagraphShell((Paragraph)item,parent);
+			for (int i=0; i < item.getNoSubItems();i++) {
+				ComplianceItem subItem=item.getSubItem(i);
+				if (kept.containsKey(subItem)) addChild(copy,project(subItem,copy,kept));
 			}
-			removeListed(current,toRemove);
-			return current;
+			return copy;
 		}
-		
-		private static boolean match(ComplianceItem item, int filterLevel,String[] filterPath) {
+
+		private static boolean match(ComplianceItem item, int filterLevel,String[] filterPath,IdentityHashMap<ComplianceItem,Boolean> kept) {
 			boolean match=false;
 			// do I match?
-			if (filterLevel>=filterPath.length) return true;
+			if (filterLevel>=filterPath.length) {
+				kept.put(item,WHOLE);
+				return true;
+			}
 			String myItem=filterPath[filterLevel];
 			int numberedToMatch=-1;
 			try {
@@ -102,14 +148,14 @@ public class ComplianceDocumentFilter {
 			} catch (Exception e) {
 				numberedToMatch=-1;
 			}
-		
+
 			if (item.hasNumber() && numberedToMatch!=-1) {
 				if (numberedToMatch==item.getNumber()) match=true;
 			} else {
 				String title=item.getMetaDataString("dcterms:title");
 				if (title!=null && (title.equals(filterPath[filterLevel]) || title.equals(filterPath[filterLevel].replace("_"," ")))) match=true;
 			}
-			
+
 			//do my children match
 			if (item.hasNumber()) {
 					if (!match) return false;
@@ -117,20 +163,18 @@ public class ComplianceDocumentFilter {
 			} else {
 				if (match) filterLevel++;
 			}
-			
-			
-			
-			HashSet<ComplianceItem> toRemove=new HashSet<ComplianceItem>();
+
 			for (int i=0; i < item.getNoSubItems();i++) {
 					ComplianceItem currentItem=item.getSubItem(i);
-					if (!match(currentItem,filterLevel,filterPath)) toRemove.add(currentItem);
-					else {
+					if (match(currentItem,filterLevel,filterPath,kept)) {
+						kept.putIfAbsent(currentItem,FILTERED);
 						match=true;
 						//is it a direct match?
 						if (filterLevel==filterPath.length-1) {
 							if (currentItem.getAccessURL()!=null) {
-								String[] aUrl=currentItem.getAccessURL().split("/");	
+								String[] aUrl=currentItem.getAccessURL().split("/");
 								if (aUrl[aUrl.length-1].equals(filterPath[filterLevel])) {
+									//keep the unnumbered items that follow on from the match
 									i++;
 									for (;i< item.getNoSubItems();i++){
 										if (item.getSubItem(i) instanceof Section) {
@@ -141,37 +185,38 @@ public class ComplianceDocumentFilter {
 											i--;
 											break;
 										}
+										kept.put(item.getSubItem(i),WHOLE);
 									}
 								}
 							}
 						}
 					}
 			}
-			
-		
-			
-			removeListed(item,toRemove);
 			return match;
 		}
-		
-		private static void stripBody(ComplianceItem item) {
-				if (item instanceof Section) {
-						Section s=(Section)item;
-						for (int i=0; i < s.getNoSections();i++) stripBody(s.getSection(i));
-						for (int i=0; i < s.getNoParagraphs();i++) stripBody(s.getParagraph(i));
-				}
-				if (item instanceof Paragraph) {
-						Paragraph p=(Paragraph)item;
-						p.setBodyText("");
-						for (int i=0; i < p.getNoParagraphs();i++) stripBody(p.getParagraph(i));
-						for (int i=0; i < p.getNoInserts();i++) p.removeSubItem(p.getInsert(i));
+
+		private static Section stripSection(Section s,ComplianceItem parent) {
+				Section copy=ComplianceDocumentCopier.copySectionShell(s,parent);
+				for (int i=0; i < s.getNoSubItems();i++) {
+						ComplianceItem item=s.getSubItem(i);
+						if (item instanceof Section) copy.addSection(stripSection((Section)item,copy));
+						else if (item instanceof Paragraph) copy.addParagraph(stripParagraph((Paragraph)item,copy));
 				}
+				return copy;
+		}
+
+		private static Paragraph stripParagraph(Paragraph p,ComplianceItem parent) {
+				Paragraph copy=ComplianceDocumentCopier.copyParagraphShell(p,parent);
+				copy.setBodyText("");
+				for (int i=0; i < p.getNoParagraphs();i++) copy.addParagraph(stripParagraph(p.getParagraph(i),copy));
+				return copy;
 		}
-		
+
 		public static ComplianceDocument filterBodies(ComplianceDocument current) {
-			for (int i=0; i < current.getNoSections();i++) stripBody(current.getSection(i));
-			return current;
+			ComplianceDocument document=copyDocumentShell(current);
+			for (int i=0; i < current.getNoSections();i++) document.addSection(stripSection(current.getSection(i),document));
+			return document;
 		}
-		
-	
-}
\ No newline at end of file
+
+
+}
@@ -0,0 +1,53 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+*This contains the SHA-256 helpers shared by the ETags, content hashes, figure store and diff signatures, all of which are lowercase hex strings.
+*
+*/
+public class ComplianceDocumentHashes {
+
+	private static final char[] HEX="0123456789abcdef".toCharArray();
+
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//every JVM has to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String sha256(byte[] data) {
+		return hex(sha256().digest(data));
+	}
+
+	public static String hex(byte[] digest) {
+		char[] str=new char[digest.length*2];
+		for (int i=0; i < digest.length;i++) {
+			str[i*2]=HEX[(digest[i] >> 4) & 0xf];
+			str[i*2+1]=HEX[digest[i] & 0xf];
+		}
+		return new String(str);
+	}
+}
@@ -42,6 +42,10 @@ public class ComplianceDocumentIndexItem {
 			if (versions!=null) dataSet.put("versions",versions);
 	}
 	
+	public Object getProperty(String name) {
+		return dataSet.get(name);
+	}
+	
 	public String toXMLContent() {
 		StringBuffer str=new StringBuffer();
 		str.append("<ComplianceDocument>");
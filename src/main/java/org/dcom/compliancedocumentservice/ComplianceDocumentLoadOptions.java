@@ -0,0 +1,57 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+/**
+*This says which parts of a compliance document the database layer should read. A structure only load reads the sections and paragraphs with their metadata and numbering but leaves out paragraph bodies and never reads figures or tables, giving what ComplianceDocumentFilter.filterBodies would give.
+*Without images, figures kept in the figure store are given with just their dcom:imageHash for the client to fetch from /_figures when it needs them.
+*
+*/
+public class ComplianceDocumentLoadOptions {
+
+	public static final ComplianceDocumentLoadOptions FULL=new ComplianceDocumentLoadOptions(true,true,true);
+	public static final ComplianceDocumentLoadOptions STRUCTURE=new ComplianceDocumentLoadOptions(false,false,false);
+	public static final ComplianceDocumentLoadOptions LAZY_IMAGES=new ComplianceDocumentLoadOptions(true,true,false);
+
+	private boolean bodies;
+	private boolean inserts;
+	private boolean images;
+
+	public ComplianceDocumentLoadOptions(boolean bodies,boolean inserts,boolean images) {
+		this.bodies=bodies;
+		this.inserts=inserts;
+		this.images=images;
+	}
+
+	public boolean loadBodies() {
+		return bodies;
+	}
+
+	public boolean loadInserts() {
+		return inserts;
+	}
+
+	public boolean loadImages() {
+		return images;
+	}
+
+	public boolean isFull() {
+		return bodies && inserts && images;
+	}
+}
@@ -0,0 +1,213 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+*This holds the rendered JSON/XML of explicitly versioned document requests (and the root document listing) along with a strong ETag for each, so repeated requests (and If-None-Match revalidations) do not need to go to the database.
+*Responses are kept as they are streamed to the first client that asks for them. A response larger than a quarter of the cache is not kept, so one large document cannot push out everything else.
+*
+*/
+public class ComplianceDocumentResponseCache {
+
+	/**
+	*A single rendered response
+	*
+	*/
+	public static class CachedResponse {
+
+		private byte[] body;
+		private String eTag;
+
+		private CachedResponse(byte[] body,String eTag) {
+			this.body=body;
+			this.eTag=eTag;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+	}
+
+	private LinkedHashMap<String,CachedResponse> responses;
+	private long maxBytes;
+	private long currentBytes=0;
+	private AtomicLong hits=new AtomicLong();
+	private AtomicLong misses=new AtomicLong();
+	private AtomicLong evictions=new AtomicLong();
+	private AtomicLong generation=new AtomicLong();
+
+	public ComplianceDocumentResponseCache(long maxBytes) {
+		this.maxBytes=maxBytes;
+		responses=new LinkedHashMap<String,CachedResponse>(16,0.75f,true);
+	}
+
+	private static String normalisePath(String path) {
+		if (path.startsWith("/")) return path.substring(1);
+		return path;
+	}
+
+	public static String key(String path,String mediaType,MultivaluedMap<String,String> queryParams) {
+		StringBuffer str=new StringBuffer();
+		str.append(normalisePath(path)).append("|").append(mediaType);
+		if (queryParams!=null) {
+			ArrayList<String> names=new ArrayList<String>(queryParams.keySet());
+			Collections.sort(names);
+			for (String name: names) str.append("|").append(name).append("=").append(queryParams.get(name));
+		}
+		return str.toString();
+	}
+
+	public CachedResponse get(String key) {
+		CachedResponse response;
+		synchronized (responses) {
+			response=responses.get(key);
+		}
+		if (response==null) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		return response;
+	}
+
+	//taken before rendering and handed to put, so a response rendered from data that has since been invalidated is not kept
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	public long getMaxEntryBytes() {
+		return maxBytes/4;
+	}
+
+	public CachedResponse put(String key,byte[] data,long started) {
+		CachedResponse response=new CachedResponse(data,generateETag(data));
+		if (data.length > getMaxEntryBytes()) return response;
+		synchronized (responses) {
+			if (generation.get()!=started) return response;
+			CachedResponse old=responses.put(key,response);
+			if (old!=null) currentBytes-=old.getBody().length;
+			currentBytes+=data.length;
+			Iterator<Map.Entry<String,CachedResponse>> entries=responses.entrySet().iterator();
+			while (currentBytes > maxBytes && entries.hasNext()) {
+				Map.Entry<String,CachedResponse> eldest=entries.next();
+				currentBytes-=eldest.getValue().getBody().length;
+				entries.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		return response;
+	}
+
+	//writes output on to the client keeping a copy, which is put in the cache once all of it has been written as long as it is small enough to keep
+	public StreamingOutput fill(String key,StreamingOutput output,long started) {
+		return out -> {
+			CopyingOutputStream copying=new CopyingOutputStream(out,getMaxEntryBytes());
+			output.write(copying);
+			copying.flush();
+			byte[] copy=copying.getCopy();
+			if (copy!=null) put(key,copy,started);
+		};
+	}
+
+	//passes everything written on, keeping a copy until there is more than limit bytes of it
+	private static class CopyingOutputStream extends FilterOutputStream {
+
+		private ByteArrayOutputStream copy=new ByteArrayOutputStream(8192);
+		private long limit;
+
+		private CopyingOutputStream(OutputStream out,long limit) {
+			super(out);
+			this.limit=limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			keep(new byte[]{(byte)b},0,1);
+		}
+
+		@Override
+		public void write(byte[] b,int off,int len) throws IOException {
+			out.write(b,off,len);
+			keep(b,off,len);
+		}
+
+		private void keep(byte[] b,int off,int len) {
+			if (copy==null) return;
+			if (copy.size()+(long)len > limit) copy=null;
+			else copy.write(b,off,len);
+		}
+
+		private byte[] getCopy() {
+			return copy==null ? null : copy.toByteArray();
+		}
+	}
+
+	public void invalidate(String jurisdiction,String type,String shortName) {
+		String prefix=jurisdiction+"/"+type+"/"+shortName+"/";
+		synchronized (responses) {
+			generation.incrementAndGet();
+			Iterator<Map.Entry<String,CachedResponse>> entries=responses.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String,CachedResponse> entry=entries.next();
+				// the root listing (empty path) includes every document so always goes too
+				if (entry.getKey().startsWith(prefix) || entry.getKey().startsWith("|")) {
+					currentBytes-=entry.getValue().getBody().length;
+					entries.remove();
+				}
+			}
+		}
+	}
+
+	private static String generateETag(byte[] data) {
+		return ComplianceDocumentHashes.sha256(data);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getSizeBytes() {
+		synchronized (responses) {
+			return currentBytes;
+		}
+	}
+}
@@ -28,10 +28,13 @@ import org.glassfish.jersey.server.ResourceConfig;
 import org.dcom.core.servicehelper.ServiceBaseInfo;
 import javax.ws.rs.ApplicationPath;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
 import org.dcom.core.servicehelper.UserAuthorisationValidator;
 import org.dcom.core.servicehelper.KeycloakUserAuthorisationValidator;
 import org.dcom.core.services.ServiceLookup;
 import org.dcom.compliancedocumentservice.orientdb.OrientDBComplianceDocumentDatabase;
+import org.dcom.compliancedocumentservice.orientdb.OrientDBSessionPool;
 
 /**
 *The startup class of the ComplianceDocument web service, this configures, sets global variables and then starts the restful web service.
@@ -56,17 +59,64 @@ public class ComplianceDocumentService extends ResourceConfig {
           System.exit(1);
         }
 
+        //create base service info
+        final ServiceBaseInfo serviceBaseInfo=new ServiceBaseInfo(ServiceBaseInfo.NAME,ServiceBaseInfo.DESCRIPTION,ServiceBaseInfo.OPERATOR,ServiceBaseInfo.SECURITY_SERVICE_TYPE,ServiceBaseInfo.SECURITY_SERVICE_URI,ServiceBaseInfo.HOSTNAME,ServiceBaseInfo.PORT);
+
         //create the database connection
         if (!DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBURL") || !DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBUsername") || !DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBPassword") || !DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBDatabase")) {
           LOGGER.error("OrientDB Connection Variables Not Defined");
           System.exit(0);
         }
-        final ComplianceDocumentDatabase database=new OrientDBComplianceDocumentDatabase(DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBURL"),DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBUsername"),DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBPassword"),DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBDatabase"));
+        int poolMin=getIntegerSetting("DCOM_ComplianceDocumentService_PoolMin",1);
+        int poolMax=getIntegerSetting("DCOM_ComplianceDocumentService_PoolMax",100);
+        int poolAcquireTimeout=getIntegerSetting("DCOM_ComplianceDocumentService_PoolAcquireTimeout",1000);
+        int poolIdleTimeout=getIntegerSetting("DCOM_ComplianceDocumentService_PoolIdleTimeout",5000);
+        final OrientDBComplianceDocumentDatabase orientDatabase=new OrientDBComplianceDocumentDatabase(DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBURL"),DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBUsername"),DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBPassword"),DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_OrientDBDatabase"),poolMin,poolMax,poolAcquireTimeout,poolIdleTimeout);
+        final OrientDBSessionPool sessionPool=orientDatabase.getSessionPool();
+        if (DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_BatchLoad")) {
+          orientDatabase.setBatchLoading(Boolean.parseBoolean(DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_BatchLoad")));
+        }
+        orientDatabase.setParallelLoading(getIntegerSetting("DCOM_ComplianceDocumentService_ParallelLoadThreads",0));
+        ComplianceDocumentFigureStore figureStore=null;
+        if (DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_FigureStore")) {
+          try {
+            figureStore=new ComplianceDocumentFigureStore(DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_FigureStore"));
+            orientDatabase.setFigureStore(figureStore);
+          } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+          }
+        }
+        final ComplianceDocumentFigureStore finalFigureStore=figureStore;
+        int documentCacheSize=getIntegerSetting("DCOM_ComplianceDocumentService_DocumentCacheSize",32);
+        int diffCacheSize=getIntegerSetting("DCOM_ComplianceDocumentService_DiffCacheSize",16);
+        ComplianceDocumentDatabase cachingDatabase=orientDatabase;
+        CachingComplianceDocumentDatabase documentCache=null;
+        if (documentCacheSize > 0) {
+          documentCache=new CachingComplianceDocumentDatabase(orientDatabase,documentCacheSize,diffCacheSize,ComplianceDocumentAPI.generateURL(serviceBaseInfo));
+          cachingDatabase=documentCache;
+        }
+        final CachingComplianceDocumentDatabase finalDocumentCache=documentCache;
+        final ComplianceDocumentDatabase database=new IndexedComplianceDocumentDatabase(cachingDatabase);
+
+        long responseCacheBytes=getLongSetting("DCOM_ComplianceDocumentService_ResponseCacheBytes",64L*1024*1024);
+        final ComplianceDocumentResponseCache responseCache=new ComplianceDocumentResponseCache(responseCacheBytes);
+
+        //request work runs off the container threads, index listings on their own executor so they never wait behind document loads
+        int requestTimeout=getIntegerSetting("DCOM_ComplianceDocumentService_RequestTimeout",30000);
+        final ComplianceDocumentExecutor indexExecutor=new ComplianceDocumentExecutor("IndexRequest",getIntegerSetting("DCOM_ComplianceDocumentService_IndexThreads",4),getIntegerSetting("DCOM_ComplianceDocumentService_IndexQueue",100),requestTimeout);
+        final ComplianceDocumentExecutor documentExecutor=new ComplianceDocumentExecutor("DocumentRequest",getIntegerSetting("DCOM_ComplianceDocumentService_DocumentThreads",16),getIntegerSetting("DCOM_ComplianceDocumentService_DocumentQueue",200),requestTimeout);
+        //uploads get no timeout, answering 503 while the write carries on would invite a retry that writes the version twice
+        final ComplianceDocumentExecutor writeExecutor=new ComplianceDocumentExecutor("WriteRequest",getIntegerSetting("DCOM_ComplianceDocumentService_WriteThreads",4),getIntegerSetting("DCOM_ComplianceDocumentService_WriteQueue",50),0);
+
+        //warm the caches in the background, DCOM_ComplianceDocumentService_Warmup is all, top or a list of jurisdiction/type/shortName
+        String warmupMode=null;
+        if (DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_Warmup")) warmupMode=DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_Warmup");
+        String warmupRecord=null;
+        if (DCOM.existsEnvironmentVariable("DCOM_ComplianceDocumentService_WarmupRecord")) warmupRecord=DCOM.getEnvironmentVariable("DCOM_ComplianceDocumentService_WarmupRecord");
+        final ComplianceDocumentWarmup warmup=new ComplianceDocumentWarmup(database,responseCache,documentCacheSize,ComplianceDocumentAPI.generateURL(serviceBaseInfo),warmupMode,getIntegerSetting("DCOM_ComplianceDocumentService_WarmupTopN",20),getIntegerSetting("DCOM_ComplianceDocumentService_WarmupThreads",4),warmupRecord);
+        warmup.start();
 
-        //create base service info
-        final ServiceBaseInfo serviceBaseInfo=new ServiceBaseInfo(ServiceBaseInfo.NAME,ServiceBaseInfo.DESCRIPTION,ServiceBaseInfo.OPERATOR,ServiceBaseInfo.SECURITY_SERVICE_TYPE,ServiceBaseInfo.SECURITY_SERVICE_URI,ServiceBaseInfo.HOSTNAME,ServiceBaseInfo.PORT);
-        
-        
         //create authenticator
         UserAuthorisationValidator authenticator=null;
         if (serviceBaseInfo.getProperty(ServiceBaseInfo.SECURITY_SERVICE_TYPE).equalsIgnoreCase("Keycloak")) {
@@ -84,13 +134,55 @@ public class ComplianceDocumentService extends ResourceConfig {
         final UserAuthorisationValidator finalAuthenticator=authenticator;
         register(new CORSFilter());
         register(ComplianceDocumentAPI.class);
+        register(ComplianceDocumentStatusAPI.class);
+        register(ComplianceDocumentDatabaseUnavailableException.Mapper.class);
+        if (finalFigureStore!=null) register(ComplianceDocumentFigureAPI.class);
+        //threads and database sessions are let go when the service is undeployed rather than kept until the JVM exits
+        register(new ContainerLifecycleListener() {
+          @Override
+          public void onStartup(Container container) {
+          }
+
+          @Override
+          public void onReload(Container container) {
+          }
+
+          @Override
+          public void onShutdown(Container container) {
+            LOGGER.info("Shutting down");
+            warmup.close();
+            indexExecutor.close();
+            documentExecutor.close();
+            writeExecutor.close();
+            if (finalDocumentCache!=null) finalDocumentCache.close();
+            orientDatabase.close();
+          }
+        });
         register(new AbstractBinder() {
           @Override
           protected void configure() {
             bind(database).to(ComplianceDocumentDatabase.class);
             bind(finalAuthenticator).to(UserAuthorisationValidator.class);
             bind(serviceBaseInfo).to(ServiceBaseInfo.class);
+            bind(responseCache).to(ComplianceDocumentResponseCache.class);
+            bind(sessionPool).to(OrientDBSessionPool.class);
+            bind(indexExecutor).to(ComplianceDocumentExecutor.class).named("index");
+            bind(documentExecutor).to(ComplianceDocumentExecutor.class).named("document");
+            bind(writeExecutor).to(ComplianceDocumentExecutor.class).named("write");
+            bind(warmup).to(ComplianceDocumentWarmup.class);
+            if (finalFigureStore!=null) bind(finalFigureStore).to(ComplianceDocumentFigureStore.class);
+            if (finalDocumentCache!=null) bind(finalDocumentCache).to(CachingComplianceDocumentDatabase.class);
           }
         });
     }
-}
\ No newline at end of file
+
+    private static int getIntegerSetting(String name,int defaultValue) {
+        if (!DCOM.existsEnvironmentVariable(name)) return defaultValue;
+        return Integer.parseInt(DCOM.getEnvironmentVariable(name));
+    }
+
+    private static long getLongSetting(String name,long defaultValue) {
+        if (!DCOM.existsEnvironmentVariable(name)) return defaultValue;
+        return Long.parseLong(DCOM.getEnvironmentVariable(name));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+*This makes sure only one load is running at a time for any key. A caller asking for a key that is already being loaded waits for that load and is given the same result (or exception) rather than starting its own.
+*Loads are only shared while they are running, keeping the result is up to the caller.
+*
+*/
+public class ComplianceDocumentSingleFlight<K,V> {
+
+	private ConcurrentHashMap<K,CompletableFuture<V>> inFlight=new ConcurrentHashMap<K,CompletableFuture<V>>();
+	private AtomicLong loads=new AtomicLong();
+	private AtomicLong coalesced=new AtomicLong();
+
+	public V get(K key,Supplier<V> load) {
+		CompletableFuture<V> mine=new CompletableFuture<V>();
+		CompletableFuture<V> running=inFlight.putIfAbsent(key,mine);
+		if (running!=null) {
+			coalesced.incrementAndGet();
+			try {
+				return running.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				if (e.getCause() instanceof Error) throw (Error)e.getCause();
+				throw e;
+			}
+		}
+		loads.incrementAndGet();
+		try {
+			V value=load.get();
+			mine.complete(value);
+			return value;
+		} catch (RuntimeException | Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key,mine);
+		}
+	}
+
+	//callers that come after this start a load of their own for the matching keys, those already waiting still share the running load
+	public void forget(Predicate<K> matching) {
+		inFlight.keySet().removeIf(matching);
+	}
+
+	public long getLoads() {
+		return loads.get();
+	}
+
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.size();
+	}
+}
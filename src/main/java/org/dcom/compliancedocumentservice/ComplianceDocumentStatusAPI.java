@@ -0,0 +1,123 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import javax.ws.rs.Path;
+import javax.inject.Inject;
+import javax.inject.Named;
+import org.jvnet.hk2.annotations.Optional;
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+import com.owlike.genson.Genson;
+import org.dcom.compliancedocumentservice.orientdb.OrientDBSessionPool;
+
+/**
+*This provides operational information about the running service (database session pool, document and response cache and request executor usage, warm up progress) for monitoring.
+*
+*/
+@Path("/_status")
+public class ComplianceDocumentStatusAPI {
+
+	@Inject
+	public OrientDBSessionPool sessionPool;
+
+	@Inject
+	public ComplianceDocumentResponseCache responseCache;
+
+	//not there when document caching is turned off
+	@Inject
+	@Optional
+	public CachingComplianceDocumentDatabase documentCache;
+
+	@Inject
+	@Named("index")
+	public ComplianceDocumentExecutor indexExecutor;
+
+	@Inject
+	@Named("document")
+	public ComplianceDocumentExecutor documentExecutor;
+
+	@Inject
+	@Named("write")
+	public ComplianceDocumentExecutor writeExecutor;
+
+	@Inject
+	public ComplianceDocumentWarmup warmup;
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response statusJSON() {
+		LinkedHashMap<String,Object> pool=new LinkedHashMap<String,Object>();
+		pool.put("active",sessionPool.getActive());
+		pool.put("available",sessionPool.getAvailable());
+		pool.put("max",sessionPool.getMax());
+		pool.put("waiting",sessionPool.getWaiting());
+		pool.put("acquired",sessionPool.getAcquired());
+		pool.put("timeouts",sessionPool.getTimeouts());
+		pool.put("acquireLatency",sessionPool.getAcquireLatencies());
+
+		LinkedHashMap<String,Object> cache=new LinkedHashMap<String,Object>();
+		cache.put("hits",responseCache.getHits());
+		cache.put("misses",responseCache.getMisses());
+		cache.put("evictions",responseCache.getEvictions());
+		cache.put("sizeBytes",responseCache.getSizeBytes());
+
+		LinkedHashMap<String,Object> status=new LinkedHashMap<String,Object>();
+		status.put("sessionPool",pool);
+		status.put("responseCache",cache);
+		if (documentCache!=null) {
+			LinkedHashMap<String,Object> documents=new LinkedHashMap<String,Object>();
+			documents.put("hits",documentCache.getHits());
+			documents.put("misses",documentCache.getMisses());
+			documents.put("evictions",documentCache.getEvictions());
+			documents.put("size",documentCache.getSize());
+			documents.put("diffHits",documentCache.getDiffHits());
+			documents.put("diffMisses",documentCache.getDiffMisses());
+			documents.put("loads",documentCache.getLoads());
+			documents.put("coalesced",documentCache.getCoalesced());
+			status.put("documentCache",documents);
+		}
+		status.put("indexExecutor",executorStatus(indexExecutor));
+		status.put("documentExecutor",executorStatus(documentExecutor));
+		status.put("writeExecutor",executorStatus(writeExecutor));
+		status.put("warmup",warmup.getProgress());
+		return Response.ok(new Genson().serialize(status)).header("Cache-Control","no-cache").build();
+	}
+
+	//for the orchestrator, not ready until the warm up has loaded the hot documents
+	@GET
+	@Path("/ready")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response readyJSON() {
+		return Response.status(warmup.isReady() ? 200 : 503).entity(new Genson().serialize(warmup.getProgress())).header("Cache-Control","no-cache").build();
+	}
+
+	private static LinkedHashMap<String,Object> executorStatus(ComplianceDocumentExecutor executor) {
+		LinkedHashMap<String,Object> status=new LinkedHashMap<String,Object>();
+		status.put("active",executor.getActive());
+		status.put("queued",executor.getQueued());
+		status.put("completed",executor.getCompleted());
+		status.put("rejected",executor.getRejected());
+		status.put("timeouts",executor.getTimeouts());
+		return status;
+	}
+}
@@ -0,0 +1,391 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.ws.rs.core.StreamingOutput;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.ComplianceItem;
+import org.dcom.core.compliancedocument.Figure;
+import org.dcom.core.compliancedocument.Paragraph;
+import org.dcom.core.compliancedocument.Section;
+import org.dcom.core.compliancedocument.serialisers.JSONComplianceDocumentSerialiser;
+import org.dcom.core.compliancedocument.serialisers.XMLComplianceDocumentSerialiser;
+
+/**
+*This writes responses straight to the servlet output stream through a bounded buffer rather than handing Jersey one large String.
+*Documents are written a top level section at a time. What comes before, between and after the sections is learnt for each document by serialising it with probe sections, and each section is serialised in a copy of the document holding only that section, so no more than one section's serialised form is held at once. If the probes do not show where the sections are, the document is serialised in one go.
+*The figure image data (usually the bulk of a document) is swapped for short markers in the copy before serialising and then written directly from the figures, so the serialised form never holds a copy of it.
+*The images are escaped exactly as the serialiser escapes them, which is learnt once by serialising a probe figure, and image data holding any character outside the probe is left to the serialiser so the output is always the same as serialising the document.
+*
+*/
+public class ComplianceDocumentStreamingOutput implements StreamingOutput {
+
+	private static final int BUFFER_SIZE=8192;
+	//base64 and data URI characters, image data with anything else is left to the serialiser
+	private static final String IMAGE_CHARACTERS="ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=:;,.-_ \r\n";
+
+	private static String[] jsonEscapes;
+	private static boolean jsonLearnt=false;
+	private static String[] xmlEscapes;
+	private static boolean xmlLearnt=false;
+
+	//what a document's serialised form holds around its sections, head before the first, joint between each two and tail after the last
+	static class Frame {
+
+		String head;
+		String joint;
+		String tail;
+
+		private Frame(String head,String joint,String tail) {
+			this.head=head;
+			this.joint=joint;
+			this.tail=tail;
+		}
+	}
+
+	private ComplianceDocument document;
+	private boolean json;
+	private String prefix;
+	private ArrayList<String> items;
+	private ArrayList<ComplianceDocumentIndexItem> documents;
+	private String separator;
+	private String suffix;
+
+	private ComplianceDocumentStreamingOutput() {
+	}
+
+	public static StreamingOutput json(ComplianceDocument document) {
+		ComplianceDocumentStreamingOutput output=new ComplianceDocumentStreamingOutput();
+		output.document=document;
+		output.json=true;
+		return output;
+	}
+
+	public static StreamingOutput xml(ComplianceDocument document) {
+		ComplianceDocumentStreamingOutput output=new ComplianceDocumentStreamingOutput();
+		output.document=document;
+		output.json=false;
+		return output;
+	}
+
+	//writes prefix, then each item with the separator between them, then suffix
+	public static StreamingOutput list(String prefix,ArrayList<String> items,String separator,String suffix) {
+		ComplianceDocumentStreamingOutput output=new ComplianceDocumentStreamingOutput();
+		output.prefix=prefix;
+		output.items=items;
+		output.separator=separator;
+		output.suffix=suffix;
+		return output;
+	}
+
+	//each item is rendered as it is written
+	public static StreamingOutput jsonIndex(String prefix,ArrayList<ComplianceDocumentIndexItem> documents,String suffix) {
+		ComplianceDocumentStreamingOutput output=(ComplianceDocumentStreamingOutput)list(prefix,null,",",suffix);
+		output.documents=documents;
+		output.json=true;
+		return output;
+	}
+
+	public static StreamingOutput xmlIndex(String prefix,ArrayList<ComplianceDocumentIndexItem> documents,String suffix) {
+		ComplianceDocumentStreamingOutput output=(ComplianceDocumentStreamingOutput)list(prefix,null,"",suffix);
+		output.documents=documents;
+		output.json=false;
+		return output;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		Writer writer=new BufferedWriter(new OutputStreamWriter(out,StandardCharsets.UTF_8),BUFFER_SIZE);
+		if (document!=null) writeDocument(writer);
+		else if (documents!=null) {
+			writer.write(prefix);
+			for (int i=0; i < documents.size();i++) {
+				if (i!=0) writer.write(separator);
+				writer.write(json ? documents.get(i).toJSONContent() : documents.get(i).toXMLContent());
+			}
+			writer.write(suffix);
+		} else {
+			writer.write(prefix);
+			for (int i=0; i < items.size();i++) {
+				if (i!=0) writer.write(separator);
+				writer.write(items.get(i));
+			}
+			writer.write(suffix);
+		}
+		writer.flush();
+	}
+
+	//the whole response as bytes, responses themselves are streamed
+	public static byte[] toBytes(StreamingOutput output) {
+		ByteArrayOutputStream out=new ByteArrayOutputStream(BUFFER_SIZE);
+		try {
+			output.write(out);
+		} catch (IOException e) {
+			//writing to memory does not fail
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static String serialise(ComplianceDocument doc,boolean json) {
+		if (json) return JSONComplianceDocumentSerialiser.serialise(doc);
+		return XMLComplianceDocumentSerialiser.serialise(doc);
+	}
+
+	private static void collectFigures(ComplianceItem item,ArrayList<Figure> figures) {
+		if (item instanceof Paragraph) {
+			Paragraph p=(Paragraph)item;
+			for (int i=0; i < p.getNoInserts();i++) {
+				if (p.getInsert(i) instanceof Figure) figures.add((Figure)p.getInsert(i));
+			}
+		}
+		for (int i=0; i < item.getNoSubItems();i++) collectFigures(item.getSubItem(i),figures);
+	}
+
+	//how the serialiser writes each character image data may hold, worked out by serialising a figure holding them all between markers. null if that could not be worked out
+	private static String[] learnEscapes(boolean json) {
+		String marker="dcomprobe";
+		StringBuffer probe=new StringBuffer(marker);
+		for (int i=0; i < IMAGE_CHARACTERS.length();i++) probe.append(IMAGE_CHARACTERS.charAt(i)).append(marker);
+		ComplianceDocument document=new ComplianceDocument();
+		Section s=new Section(document);
+		Paragraph p=new Paragraph(s);
+		Figure figure=new Figure(p);
+		figure.setImageData(probe.toString());
+		p.addInsert(figure);
+		s.addParagraph(p);
+		document.addSection(s);
+		String rendered;
+		try {
+			rendered=json ? JSONComplianceDocumentSerialiser.serialise(document) : XMLComplianceDocumentSerialiser.serialise(document);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		int position=rendered.indexOf(marker);
+		if (position==-1) return null;
+		String[] escapes=new String[128];
+		for (int i=0; i < IMAGE_CHARACTERS.length();i++) {
+			int start=position+marker.length();
+			position=rendered.indexOf(marker,start);
+			if (position==-1) return null;
+			escapes[IMAGE_CHARACTERS.charAt(i)]=rendered.substring(start,position);
+		}
+		return escapes;
+	}
+
+	private static synchronized String[] getEscapes(boolean json) {
+		if (json) {
+			if (!jsonLearnt) jsonEscapes=learnEscapes(true);
+			jsonLearnt=true;
+			return jsonEscapes;
+		}
+		if (!xmlLearnt) xmlEscapes=learnEscapes(false);
+		xmlLearnt=true;
+		return xmlEscapes;
+	}
+
+	private static boolean canEscape(String image,String[] escapes) {
+		for (int i=0; i < image.length();i++) {
+			char c=image.charAt(i);
+			if (c >= escapes.length || escapes[c]==null) return false;
+		}
+		return true;
+	}
+
+	//writes image as the serialiser would have, runs of characters it leaves alone are written straight from the string
+	private static void writeEscaped(Writer writer,String image,String[] escapes) throws IOException {
+		int run=0;
+		for (int i=0; i < image.length();i++) {
+			char c=image.charAt(i);
+			String escaped=escapes[c];
+			if (escaped.length()==1 && escaped.charAt(0)==c) continue;
+			writer.write(image,run,i-run);
+			writer.write(escaped);
+			run=i+1;
+		}
+		writer.write(image,run,image.length()-run);
+	}
+
+	//a document with the metadata of document and no sections
+	private static ComplianceDocument shell(ComplianceDocument document) {
+		ComplianceDocument shell=new ComplianceDocument();
+		ComplianceDocumentCopier.copyMetaData(document,shell);
+		return shell;
+	}
+
+	private static int commonPrefix(String a,String b) {
+		int length=0;
+		while (length < a.length() && length < b.length() && a.charAt(length)==b.charAt(length)) length++;
+		return length;
+	}
+
+	private static int commonSuffix(String a,String b,int limit) {
+		int length=0;
+		while (length < limit && a.charAt(a.length()-1-length)==b.charAt(b.length()-1-length)) length++;
+		return length;
+	}
+
+	//the two probe sections differ in number, metadata and children so all they share is what the serialiser writes for every section
+	private static Section probe(ComplianceDocument shell,String marker,boolean first) {
+		Section section=new Section(shell);
+		if (first) {
+			section.setNumber(1);
+			Paragraph p=new Paragraph(section);
+			p.setBodyText(marker);
+			section.addParagraph(p);
+		} else {
+			section.setMetaData("dcterms:title",marker);
+		}
+		return section;
+	}
+
+	//serialises the document with one probe section, with the other and with both; null if the sections cannot be told apart from the rest
+	static Frame learnFrame(ComplianceDocument document,boolean json) {
+		String marker="dcomprobe"+Long.toHexString(ThreadLocalRandom.current().nextLong());
+		String first;
+		String second;
+		String both;
+		try {
+			ComplianceDocument probed=shell(document);
+			probed.addSection(probe(probed,marker,true));
+			first=serialise(probed,json);
+			probed=shell(document);
+			probed.addSection(probe(probed,marker,false));
+			second=serialise(probed,json);
+			probed=shell(document);
+			probed.addSection(probe(probed,marker,true));
+			probed.addSection(probe(probed,marker,false));
+			both=serialise(probed,json);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		int start=commonPrefix(first,second);
+		int end=commonSuffix(first,second,Math.min(first.length(),second.length())-start);
+		String head=first.substring(0,start);
+		String tail=first.substring(first.length()-end);
+		String firstSection=first.substring(start,first.length()-end);
+		String secondSection=second.substring(start,second.length()-end);
+		if (!both.startsWith(head+firstSection) || !both.endsWith(secondSection+tail)) return null;
+		int jointEnd=both.length()-end-secondSection.length();
+		if (jointEnd < start+firstSection.length()) return null;
+		return new Frame(head,both.substring(start+firstSection.length(),jointEnd),tail);
+	}
+
+	//serialises the whole document (section null) or a copy of it holding only section. when every image can be written separately they are swapped for markers, and added to images, in a copy
+	private static String render(ComplianceDocument document,Section section,boolean json,String marker,String[] escapes,ArrayList<String> images) {
+		ArrayList<Figure> figures=new ArrayList<Figure>();
+		collectFigures(section==null ? document : section,figures);
+		//images are only written separately if every character in them is one the serialiser has been seen to write, otherwise the output might differ from the serialiser's
+		boolean separate=escapes!=null;
+		int withImages=0;
+		for (int i=0; separate && i < figures.size();i++) {
+			String image=figures.get(i).getImageDataString();
+			if (image==null) continue;
+			withImages++;
+			separate=canEscape(image,escapes);
+		}
+		//the document may be shared so anything changed goes into a copy, the strings themselves are not copied
+		ComplianceDocument copy;
+		if (section==null) {
+			if (!separate || withImages==0) return serialise(document,json);
+			copy=ComplianceDocumentCopier.copy(document);
+		} else {
+			copy=shell(document);
+			copy.addSection(ComplianceDocumentCopier.copySection(section,copy));
+			if (!separate || withImages==0) return serialise(copy,json);
+		}
+		figures.clear();
+		collectFigures(copy,figures);
+		for (Figure figure: figures) {
+			String image=figure.getImageDataString();
+			if (image==null) continue;
+			figure.setImageData(marker+images.size()+"x");
+			images.add(image);
+		}
+		String rendered=serialise(copy,json);
+		int found=0;
+		for (int from=rendered.indexOf(marker); from!=-1; from=rendered.indexOf(marker,from+1)) found++;
+		if (found!=images.size()) {
+			//the serialiser changed the image data on the way out so fall back to the plain rendering
+			images.clear();
+			if (section==null) return serialise(document,json);
+			copy=shell(document);
+			copy.addSection(ComplianceDocumentCopier.copySection(section,copy));
+			return serialise(copy,json);
+		}
+		return rendered;
+	}
+
+	//writes rendered from start to end with each image marker replaced by its image
+	private static void writeImages(Writer writer,String rendered,int start,int end,String marker,ArrayList<String> images,String[] escapes) throws IOException {
+		int position=start;
+		int found=images.isEmpty() ? -1 : rendered.indexOf(marker,start);
+		while (found!=-1 && found < end) {
+			writer.write(rendered,position,found-position);
+			int numberStart=found+marker.length();
+			int numberEnd=rendered.indexOf('x',numberStart);
+			writeEscaped(writer,images.get(Integer.parseInt(rendered.substring(numberStart,numberEnd))),escapes);
+			position=numberEnd+1;
+			found=rendered.indexOf(marker,position);
+		}
+		writer.write(rendered,position,end-position);
+	}
+
+	private void writeWhole(Writer writer,String marker,String[] escapes) throws IOException {
+		ArrayList<String> images=new ArrayList<String>();
+		String rendered=render(document,null,json,marker,escapes,images);
+		writeImages(writer,rendered,0,rendered.length(),marker,images,escapes);
+	}
+
+	private void writeDocument(Writer writer) throws IOException {
+		String[] escapes=getEscapes(json);
+		String marker="dcomimage"+Long.toHexString(ThreadLocalRandom.current().nextLong())+"x";
+		Frame frame=document.getNoSections()==0 ? null : learnFrame(document,json);
+		if (frame==null) {
+			writeWhole(writer,marker,escapes);
+			return;
+		}
+		for (int i=0; i < document.getNoSections();i++) {
+			ArrayList<String> images=new ArrayList<String>();
+			String rendered=render(document,document.getSection(i),json,marker,escapes,images);
+			int end=rendered.length()-frame.tail.length();
+			if (end < frame.head.length() || !rendered.startsWith(frame.head) || !rendered.endsWith(frame.tail)) {
+				//nothing has been written yet for the first section, after that the response cannot be put right
+				if (i==0) {
+					writeWhole(writer,marker,escapes);
+					return;
+				}
+				throw new IOException("Section "+i+" of "+document+" does not serialise the way the probe sections did");
+			}
+			writer.write(i==0 ? frame.head : frame.joint);
+			writeImages(writer,rendered,frame.head.length(),end,marker,images,escapes);
+		}
+		writer.write(frame.tail);
+	}
+}
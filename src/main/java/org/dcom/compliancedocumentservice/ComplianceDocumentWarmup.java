@@ -0,0 +1,252 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.core.MediaType;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This loads the latest version of a set of documents into the service caches in the background after startup, so the first clients after a deploy are not the ones paying for cold loads. The set is either every document in the index, a given list of jurisdiction/type/shortName or the documents most asked for in previous runs.
+*No more documents are warmed than the document cache holds (the most asked for first), anything past that would only push out what was just loaded. Each warmed version is also rendered into the response cache as JSON and XML. With document caching turned off there is nothing to warm and that is reported in the progress.
+*How often each document is asked for is counted and, when a record file is given, written out every minute so the next start knows which documents are hot. Until warming has finished the service reports itself as not ready.
+*
+*/
+public class ComplianceDocumentWarmup {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( ComplianceDocumentWarmup.class );
+
+	public static final String ALL="all";
+	public static final String TOP="top";
+
+	private ComplianceDocumentDatabase database;
+	private ComplianceDocumentResponseCache responseCache;
+	private int capacity;
+	private String baseURI;
+	private String mode;
+	private int topN;
+	private int threads;
+	private Path recordFile;
+	private ScheduledExecutorService recorder;
+	private volatile ExecutorService executor;
+	private volatile String skipped;
+	private ConcurrentHashMap<String,AtomicLong> requests=new ConcurrentHashMap<String,AtomicLong>();
+	private volatile boolean finished=false;
+	private volatile int total=0;
+	private AtomicInteger loaded=new AtomicInteger();
+	private AtomicInteger failed=new AtomicInteger();
+	private volatile long startedAt;
+	private volatile long finishedAt;
+
+	//mode is null for no warming, ALL, TOP or a comma separated list of jurisdiction/type/shortName, capacity is the size of the document cache (0 when it is turned off)
+	public ComplianceDocumentWarmup(ComplianceDocumentDatabase database,ComplianceDocumentResponseCache responseCache,int capacity,String baseURI,String mode,int topN,int threads,String recordFile) {
+		this.database=database;
+		this.responseCache=responseCache;
+		this.capacity=capacity;
+		this.baseURI=baseURI;
+		this.mode=mode;
+		this.topN=topN;
+		this.threads=Math.max(1,threads);
+		if (recordFile!=null) this.recordFile=Paths.get(recordFile);
+	}
+
+	public void start() {
+		startedAt=System.currentTimeMillis();
+		if (recordFile!=null) {
+			recorder=Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread=new Thread(runnable,"WarmupRecorder");
+				thread.setDaemon(true);
+				return thread;
+			});
+			recorder.scheduleWithFixedDelay(this::saveRecord,60,60,TimeUnit.SECONDS);
+		}
+		if (mode==null || mode.isEmpty()) {
+			finish();
+			return;
+		}
+		if (capacity <= 0) {
+			skipped="document cache disabled";
+			LOGGER.info("Not warming, the document cache is disabled");
+			finish();
+			return;
+		}
+		Thread warmer=new Thread(this::warm,"Warmup");
+		warmer.setDaemon(true);
+		warmer.start();
+	}
+
+	private void warm() {
+		try {
+			List<String> documents=getDocuments();
+			if (documents.size() > capacity) {
+				LOGGER.info("Warming the first "+capacity+" of "+documents.size()+" documents, the document cache holds no more");
+				documents=documents.subList(0,capacity);
+			}
+			total=documents.size();
+			LOGGER.info("Warming "+total+" documents on "+threads+" threads");
+			executor=Executors.newFixedThreadPool(threads,runnable -> {
+				Thread thread=new Thread(runnable,"Warmup-Load");
+				thread.setDaemon(true);
+				return thread;
+			});
+			for (final String document: documents) executor.submit(() -> load(document));
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			LOGGER.error("Warming up failed:"+e.getMessage());
+		} finally {
+			finish();
+		}
+	}
+
+	private void load(String document) {
+		String[] parts=document.split("/");
+		try {
+			if (parts.length!=3) throw new IllegalArgumentException("Expected jurisdiction/type/shortName");
+			long generation=responseCache.getGeneration();
+			String version=database.getLatestVersion(parts[0],parts[1],parts[2]);
+			ComplianceDocument loadedDocument=version==null ? null : database.getReadOnlyDocument(baseURI,parts[0],parts[1],parts[2],version);
+			if (loadedDocument==null) throw new IllegalArgumentException("No such document");
+			//under the same keys the API uses for a plain versioned request
+			String path=parts[0]+"/"+parts[1]+"/"+parts[2]+"/"+version;
+			responseCache.fill(ComplianceDocumentResponseCache.key(path,MediaType.APPLICATION_JSON,null),ComplianceDocumentStreamingOutput.json(loadedDocument),generation).write(OutputStream.nullOutputStream());
+			responseCache.fill(ComplianceDocumentResponseCache.key(path,MediaType.APPLICATION_XML,null),ComplianceDocumentStreamingOutput.xml(loadedDocument),generation).write(OutputStream.nullOutputStream());
+			loaded.incrementAndGet();
+		} catch (RuntimeException | IOException e) {
+			failed.incrementAndGet();
+			LOGGER.warn("Could not warm "+document+":"+e.getMessage());
+		}
+	}
+
+	private void finish() {
+		finishedAt=System.currentTimeMillis();
+		finished=true;
+		LOGGER.info("Warm up finished, "+loaded.get()+" loaded and "+failed.get()+" failed in "+(finishedAt-startedAt)+"ms");
+	}
+
+	private List<String> getDocuments() {
+		ArrayList<String> documents=new ArrayList<String>();
+		if (mode.equalsIgnoreCase(ALL)) {
+			//documents covering several jurisdictions are warmed under the first
+			for (ComplianceDocumentIndexItem item: database.getDocumentIndex()) {
+				String jurisdiction=item.getProperty("jurisdiction").toString().split(",")[0].trim();
+				documents.add(jurisdiction+"/"+item.getProperty("documentType")+"/"+item.getProperty("shortName"));
+			}
+			//the most asked for go first so they are the ones kept when the cache cannot take them all, the sort is stable so the rest stay in index order
+			Map<String,Long> counts=readRecord();
+			Collections.sort(documents,(a,b) -> Long.compare(counts.getOrDefault(b,0L),counts.getOrDefault(a,0L)));
+		} else if (mode.equalsIgnoreCase(TOP)) {
+			Map<String,Long> counts=readRecord();
+			ArrayList<String> keys=new ArrayList<String>(counts.keySet());
+			Collections.sort(keys,(a,b) -> Long.compare(counts.get(b),counts.get(a)));
+			for (int i=0; i < keys.size() && i < topN;i++) documents.add(keys.get(i));
+		} else {
+			for (String document: mode.split(",")) {
+				if (!document.trim().isEmpty()) documents.add(document.trim());
+			}
+		}
+		return documents;
+	}
+
+	public void record(String jurisdiction,String type,String shortName) {
+		if (recordFile==null) return;
+		requests.computeIfAbsent(jurisdiction+"/"+type+"/"+shortName,key -> new AtomicLong()).incrementAndGet();
+	}
+
+	//the counts from earlier runs are kept and added to, one "count document" line each
+	private Map<String,Long> readRecord() {
+		LinkedHashMap<String,Long> counts=new LinkedHashMap<String,Long>();
+		if (recordFile==null || !Files.exists(recordFile)) return counts;
+		try {
+			for (String line: Files.readAllLines(recordFile,StandardCharsets.UTF_8)) {
+				String[] parts=line.trim().split(" ",2);
+				if (parts.length==2) counts.put(parts[1],Long.parseLong(parts[0]));
+			}
+		} catch (IOException | NumberFormatException e) {
+			LOGGER.warn("Could not read warm up record:"+e.getMessage());
+		}
+		return counts;
+	}
+
+	private synchronized void saveRecord() {
+		if (requests.isEmpty()) return;
+		Map<String,Long> counts=readRecord();
+		for (String document: requests.keySet()) {
+			long count=requests.get(document).getAndSet(0);
+			counts.put(document,counts.getOrDefault(document,0L)+count);
+		}
+		StringBuffer str=new StringBuffer();
+		for (String document: counts.keySet()) str.append(counts.get(document)).append(' ').append(document).append('\n');
+		try {
+			Path temp=Files.createTempFile(recordFile.toAbsolutePath().getParent(),"warmup",".tmp");
+			Files.write(temp,str.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(temp,recordFile,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("Could not save warm up record:"+e.getMessage());
+		}
+	}
+
+	//stops any warming still going and writes out the counts gathered since the last save
+	public void close() {
+		if (recorder!=null) {
+			recorder.shutdownNow();
+			saveRecord();
+		}
+		if (executor!=null) executor.shutdownNow();
+	}
+
+	public boolean isReady() {
+		return finished;
+	}
+
+	public LinkedHashMap<String,Object> getProgress() {
+		LinkedHashMap<String,Object> progress=new LinkedHashMap<String,Object>();
+		progress.put("ready",finished);
+		progress.put("mode",mode==null ? "none" : mode);
+		if (skipped!=null) progress.put("skipped",skipped);
+		progress.put("capacity",capacity);
+		progress.put("total",total);
+		progress.put("loaded",loaded.get());
+		progress.put("failed",failed.get());
+		progress.put("elapsedMillis",(finished ? finishedAt : System.currentTimeMillis())-startedAt);
+		return progress;
+	}
+}
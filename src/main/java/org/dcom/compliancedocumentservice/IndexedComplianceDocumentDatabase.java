@@ -0,0 +1,130 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.util.ArrayList;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This wraps another ComplianceDocumentDatabase and serves the document index from memory. The index is read once when this is created and then the entry for a document is refreshed whenever it is updated through this class.
+*
+*/
+public class IndexedComplianceDocumentDatabase implements ComplianceDocumentDatabase {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( IndexedComplianceDocumentDatabase.class );
+
+	private ComplianceDocumentDatabase database;
+	private volatile ArrayList<ComplianceDocumentIndexItem> index;
+
+	public IndexedComplianceDocumentDatabase(ComplianceDocumentDatabase database) {
+		this.database=database;
+		index=database.getDocumentIndex();
+		LOGGER.info("Materialised document index with "+index.size()+" documents");
+	}
+
+	private static boolean matches(ComplianceDocumentIndexItem item,String jurisdiction,String type,String shortName) {
+		if (type!=null && !type.equals(item.getProperty("documentType"))) return false;
+		if (shortName!=null && !shortName.equals(item.getProperty("shortName"))) return false;
+		if (jurisdiction==null) return true;
+		for (String j: item.getProperty("jurisdiction").toString().split(",")) {
+			if (j.trim().equals(jurisdiction)) return true;
+		}
+		return false;
+	}
+
+	private ArrayList<ComplianceDocumentIndexItem> filter(String jurisdiction,String type) {
+		ArrayList<ComplianceDocumentIndexItem> results=new ArrayList<ComplianceDocumentIndexItem>();
+		for (ComplianceDocumentIndexItem item: index) {
+			if (matches(item,jurisdiction,type,null)) results.add(item);
+		}
+		return results;
+	}
+
+	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex() {
+		return new ArrayList<ComplianceDocumentIndexItem>(index);
+	}
+
+	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction) {
+		return filter(jurisdiction,null);
+	}
+
+	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction,String type) {
+		return filter(jurisdiction,type);
+	}
+
+	public ComplianceDocumentIndexItem getDocumentIndexItem(String jurisdiction,String type,String shortName) {
+		for (ComplianceDocumentIndexItem item: index) {
+			if (matches(item,jurisdiction,type,shortName)) return item;
+		}
+		return null;
+	}
+
+	public String getLatestVersion(String jurisdiction,String type,String shortName) {
+		return database.getLatestVersion(jurisdiction,type,shortName);
+	}
+
+	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version) {
+		return database.getDocument(baseURI,jurisdiction,type,shortName,version);
+	}
+
+	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version,ComplianceDocumentLoadOptions options) {
+		return database.getDocument(baseURI,jurisdiction,type,shortName,version,options);
+	}
+
+	public ComplianceDocument getReadOnlyDocument(String baseURI,String jurisdiction,String type,String shortName,String version) {
+		return database.getReadOnlyDocument(baseURI,jurisdiction,type,shortName,version);
+	}
+
+	public ComplianceDocument getDiff(String baseURI,String jurisdiction,String type,String shortName,String version,String previousVersion) {
+		return database.getDiff(baseURI,jurisdiction,type,shortName,version,previousVersion);
+	}
+
+	public ComplianceDocument getDocumentFragment(String baseURI,String jurisdiction,String type,String shortName,String version,String documentReference) {
+		return database.getDocumentFragment(baseURI,jurisdiction,type,shortName,version,documentReference);
+	}
+
+	public boolean checkVersionExists(String jurisdiction,String type,String shortName,String version) {
+		return database.checkVersionExists(jurisdiction,type,shortName,version);
+	}
+
+	public void updateDocument(String jurisdiction,String type,String shortName,ComplianceDocument inDoc) throws Exception {
+		try {
+			database.updateDocument(jurisdiction,type,shortName,inDoc);
+		} finally {
+			refresh(jurisdiction,type,shortName);
+		}
+	}
+
+	// re-reads the index entry of one document and swaps it into the in memory index
+	public synchronized void refresh(String jurisdiction,String type,String shortName) {
+		ComplianceDocumentIndexItem fresh=database.getDocumentIndexItem(jurisdiction,type,shortName);
+		ArrayList<ComplianceDocumentIndexItem> newIndex=new ArrayList<ComplianceDocumentIndexItem>();
+		for (ComplianceDocumentIndexItem item: index) {
+			if (!matches(item,jurisdiction,type,shortName)) newIndex.add(item);
+			else if (fresh!=null) {
+				newIndex.add(fresh);
+				fresh=null;
+			}
+		}
+		if (fresh!=null) newIndex.add(fresh);
+		index=newIndex;
+	}
+}
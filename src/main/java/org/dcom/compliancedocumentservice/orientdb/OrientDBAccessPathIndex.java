@@ -0,0 +1,139 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.core.compliancedocument.*;
+import org.dcom.compliancedocumentservice.ComplianceDocumentFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+*This is the index of a stored version from the documentReference paths that can be asked for (numbered and titled sections and paragraphs, Figure/n and Table/n) to the vertices ComplianceDocumentFilter.filterPath would keep for it, up to MAX_REFERENCES paths besides the inserts.
+*Each path has the chains of RIDs from the top level section down to each kept item that has nothing kept below it, in document order. An entry of a chain is a RID, then the number the item was given after an "@" where it has one,
+*then for sections the paragraph number it started from and its highest paragraph number after a "~", e.g. "#25:1@3~1-4/#26:7@1". It is only ever held in memory, nothing is written to the database for it.
+*
+*/
+public class OrientDBAccessPathIndex {
+
+  //each reference is matched over the document as filterPath does, so past this many the rest of a version is left to filterPath rather than paying references x items to index it
+  static final int MAX_REFERENCES=4096;
+
+  private HashMap<String,ArrayList<String>> paths;
+
+  private OrientDBAccessPathIndex() {
+    paths=new HashMap<String,ArrayList<String>>();
+  }
+
+  // builds the index from a version loaded through records, url is the access location of the version itself
+  public static OrientDBAccessPathIndex build(ComplianceDocument document,OrientDBDocumentRecords records,String url) {
+    return build(document,records,url,MAX_REFERENCES);
+  }
+
+  static OrientDBAccessPathIndex build(ComplianceDocument document,OrientDBDocumentRecords records,String url,int maxReferences) {
+    OrientDBAccessPathIndex index=new OrientDBAccessPathIndex();
+    IdentityHashMap<ComplianceItem,String> chains=new IdentityHashMap<ComplianceItem,String>();
+    IdentityHashMap<ComplianceItem,Integer> positions=new IdentityHashMap<ComplianceItem,Integer>();
+    LinkedHashSet<String> references=new LinkedHashSet<String>();
+    index.visit(document,"",records,url,new int[2],chains,positions,references);
+    //the same matching filterPath does, so a path that keeps several items (e.g. an unnumbered paragraph given the number of the one it comes before) has them all
+    int matched=0;
+    for (String reference: references) {
+      if (++matched > maxReferences) break;
+      IdentityHashMap<ComplianceItem,Boolean> kept=ComplianceDocumentFilter.findKept(document,reference);
+      ArrayList<ComplianceItem> leaves=new ArrayList<ComplianceItem>();
+      for (ComplianceItem item: kept.keySet()) {
+        if (!hasKeptSubItem(item,kept)) leaves.add(item);
+      }
+      if (leaves.isEmpty()) continue;
+      Collections.sort(leaves,(a,b) -> Integer.compare(positions.getOrDefault(a,-1),positions.getOrDefault(b,-1)));
+      ArrayList<String> leafChains=new ArrayList<String>();
+      for (ComplianceItem leaf: leaves) leafChains.add(chains.get(leaf));
+      //an item that was not read from a vertex cannot be read again on its own
+      if (leafChains.contains(null)) continue;
+      index.paths.put(reference,leafChains);
+    }
+    return index;
+  }
+
+  private static boolean hasKeptSubItem(ComplianceItem item,IdentityHashMap<ComplianceItem,Boolean> kept) {
+    for (int i=0; i < item.getNoSubItems();i++) {
+      if (kept.containsKey(item.getSubItem(i))) return true;
+    }
+    return false;
+  }
+
+  private static String entry(ComplianceItem item,String id) {
+    String entry=id;
+    if (item.hasNumber()) entry+="@"+item.getNumber();
+    if (item instanceof Section) {
+      int highest=((Section)item).getHighestParaNumber();
+      entry+="~"+(highest-OrientDBComplianceDocumentDeserialiser.continuedParagraphs(item))+"-"+highest;
+    }
+    return entry;
+  }
+
+  //inserts are numbered in the same order ComplianceDocumentFilter looks for them, counts[0] is figures and counts[1] tables
+  private void visit(ComplianceItem item,String chain,OrientDBDocumentRecords records,String url,int[] counts,IdentityHashMap<ComplianceItem,String> chains,IdentityHashMap<ComplianceItem,Integer> positions,LinkedHashSet<String> references) {
+    if (item instanceof Paragraph) {
+      Paragraph p=(Paragraph)item;
+      for (int i=0; i < p.getNoInserts();i++) {
+        Insert insert=p.getInsert(i);
+        String id=records.getId(insert);
+        if (id==null) continue;
+        String insertChain=chain+"/"+id;
+        chains.put(insert,insertChain);
+        ArrayList<String> single=new ArrayList<String>();
+        single.add(insertChain);
+        if (insert instanceof Figure) paths.putIfAbsent("Figure/"+(++counts[0]),single);
+        if (insert instanceof Table) paths.putIfAbsent("Table/"+(++counts[1]),single);
+      }
+    }
+    for (int i=0; i < item.getNoSubItems();i++) {
+      ComplianceItem subItem=item.getSubItem(i);
+      String id=records.getId(subItem);
+      if (id==null) continue;
+      String subChain=chain.isEmpty() ? entry(subItem,id) : chain+"/"+entry(subItem,id);
+      chains.put(subItem,subChain);
+      positions.putIfAbsent(subItem,positions.size());
+      String location=subItem.getAccessURL();
+      if (location!=null && location.startsWith(url+"/")) references.add(location.substring(url.length()+1));
+      visit(subItem,subChain,records,url,counts,chains,positions,references);
+    }
+  }
+
+  //titles are indexed with underscores for spaces, as in their access locations
+  public static String normalisePath(String path) {
+    path=path.replace(" ","_");
+    if (path.startsWith("/")) path=path.substring(1);
+    if (path.endsWith("/")) path=path.substring(0,path.length()-1);
+    return path;
+  }
+
+  public List<String> get(String path) {
+    return paths.get(normalisePath(path));
+  }
+
+  public int size() {
+    return paths.size();
+  }
+}
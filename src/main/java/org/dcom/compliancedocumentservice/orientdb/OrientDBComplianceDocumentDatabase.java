@@ -22,21 +22,33 @@ import java.util.ArrayList;
 import org.dcom.compliancedocumentservice.ComplianceDocumentIndexItem;
 import org.dcom.core.compliancedocument.ComplianceDocument;
 import org.dcom.core.compliancedocument.ComplianceItem;
+import org.dcom.core.compliancedocument.Figure;
+import org.dcom.core.compliancedocument.Insert;
+import org.dcom.core.compliancedocument.Paragraph;
 import com.orientechnologies.orient.core.db.OrientDBConfig;
 import com.orientechnologies.orient.core.db.OrientDB;
 import com.orientechnologies.orient.core.db.ODatabaseSession;
 import com.orientechnologies.orient.core.db.ODatabaseType;
-import com.orientechnologies.orient.core.db.ODatabasePool;
-import com.orientechnologies.orient.core.db.OrientDBConfigBuilder;
-import com.orientechnologies.orient.core.config.OGlobalConfiguration;
 import com.orientechnologies.orient.core.sql.executor.OResultSet;
 import com.orientechnologies.orient.core.sql.executor.OResult;
-import com.orientechnologies.orient.core.exception.OAcquireTimeoutException;
 import com.orientechnologies.orient.core.record.OElement;
+import com.orientechnologies.orient.core.record.OVertex;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import java.util.Date;
+import java.io.IOException;
 import org.slf4j.Logger;
 import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.LoggerFactory;
 import org.dcom.compliancedocumentservice.ComplianceDocumentDatabase;
+import org.dcom.compliancedocumentservice.ComplianceDocumentFigureStore;
+import org.dcom.compliancedocumentservice.ComplianceDocumentFilter;
+import org.dcom.compliancedocumentservice.ComplianceDocumentLoadOptions;
 
 
 /**
@@ -46,55 +58,111 @@ import org.dcom.compliancedocumentservice.ComplianceDocumentDatabase;
 public class OrientDBComplianceDocumentDatabase implements ComplianceDocumentDatabase {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger( ComplianceDocumentDatabase.class );
-	private  ODatabasePool dbPool;
+	private OrientDB orientDB;
+	private OrientDBSessionPool sessionPool;
+	private boolean batchLoading=true;
+	private ComplianceDocumentFigureStore figureStore;
+	private volatile OrientDBParallelLoader parallelLoader;
+	private ConcurrentHashMap<String,String> documentIds=new ConcurrentHashMap<String,String>();
+	private ConcurrentHashMap<String,String> latestVersions=new ConcurrentHashMap<String,String>();
+	private LinkedHashMap<String,OrientDBAccessPathIndex> accessPathIndexes=new LinkedHashMap<String,OrientDBAccessPathIndex>(16,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,OrientDBAccessPathIndex> eldest) {
+			return size() > MAX_ACCESS_PATH_INDEXES;
+		}
+	};
+	private static final int MAX_ACCESS_PATH_INDEXES=256;
+	private AtomicLong accessPathGeneration=new AtomicLong();
 	
 
 	
 	public OrientDBComplianceDocumentDatabase(String url,String username,String password,String database) {
-    OrientDB db=new OrientDB("remote:"+url,username,password,OrientDBConfig.defaultConfig());
-    OrientDBConfigBuilder poolCfg = OrientDBConfig.builder();
-    poolCfg.addConfig(OGlobalConfiguration.CLIENT_CONNECT_POOL_WAIT_TIMEOUT,5000);
-    poolCfg.addConfig(OGlobalConfiguration.CLIENT_DB_RELEASE_WAIT_TIMEOUT,5000);
-    poolCfg.addConfig(OGlobalConfiguration.STORAGE_LOCK_TIMEOUT,5000);
-    poolCfg.addConfig(OGlobalConfiguration.DB_POOL_IDLE_TIMEOUT,5000);
-    poolCfg.addConfig(OGlobalConfiguration.DB_POOL_IDLE_CHECK_DELAY,1000);
-    poolCfg.addConfig(OGlobalConfiguration.DB_POOL_ACQUIRE_TIMEOUT,1000);
-		boolean create=false;
-		if(!db.exists(database)) {
-			db.create(database,ODatabaseType.PLOCAL);
-			create=true;
+		this(url,username,password,database,1,100,1000,5000);
+	}
+	
+	public OrientDBComplianceDocumentDatabase(String url,String username,String password,String database,int poolMin,int poolMax,int acquireTimeout,int idleTimeout) {
+		this(new OrientDB("remote:"+url,username,password,OrientDBConfig.defaultConfig()),ODatabaseType.PLOCAL,username,password,database,poolMin,poolMax,acquireTimeout,idleTimeout);
+	}
+	
+	//on an OrientDB that is already open, the tests use this with an embedded in memory one
+	OrientDBComplianceDocumentDatabase(OrientDB db,ODatabaseType type,String username,String password,String database,int poolMin,int poolMax,int acquireTimeout,int idleTimeout) {
+		orientDB=db;
+		if(!db.exists(database)) db.create(database,type);
+		sessionPool=new OrientDBSessionPool(db,database,username,password,poolMin,poolMax,acquireTimeout,idleTimeout);
+    LOGGER.info("Connecting to Database:"+database+":"+username);
+		//classes and indexes are created and kept up to date by the migrations, new or existing database alike
+		ODatabaseSession session=getSession();
+		try {
+			OrientDBSchemaMigrations.migrate(session);
+		} finally {
+			releaseSession(session);
 		}
-		dbPool=new ODatabasePool(db,database,username,password, poolCfg.build());
-    LOGGER.info("Connecting to Database:"+url+":"+username);
-		if (create) {
-				ODatabaseSession session=getSession();
-				session.command("CREATE CLASS ComplianceDocument extends V");
-				session.command("CREATE CLASS Version extends V");
-				session.command("CREATE CLASS Section extends V");
-				session.command("CREATE CLASS Paragraph extends V");
-				session.command("CREATE CLASS Figure extends V");
-				session.command("CREATE CLASS Table extends V");
-				session.command("CREATE CLASS TableGroup extends V");
-				session.command("CREATE CLASS Row extends V");
-				session.command("CREATE CLASS Cell extends V");
-				session.command("CREATE CLASS TitleCell extends Cell");
-				session.command("CREATE CLASS DataCell extends Cell");
-				session.command("CREATE CLASS TableFooter extends TableGroup");
-				session.command("CREATE CLASS TableHeader extends TableGroup");
-				session.command("CREATE CLASS TableBody extends TableGroup");
-				session.close();
+	}
+	
+	public void setBatchLoading(boolean batch) {
+		batchLoading=batch;
+	}
+
+	//with more than one thread the top level sections of a document are loaded at the same time on separate sessions
+	public synchronized void setParallelLoading(int threads) {
+		OrientDBParallelLoader previous=parallelLoader;
+		if (threads > 1) parallelLoader=new OrientDBParallelLoader(sessionPool,threads);
+		else parallelLoader=null;
+		//loads already using the old one finish on it
+		if (previous!=null) previous.close();
+	}
+
+	//lets go of the loader threads, the sessions and the connection, for when the service is undeployed
+	public void close() {
+		setParallelLoading(0);
+		sessionPool.close();
+		orientDB.close();
+	}
+
+	//with a figure store figure images are kept there rather than on their vertices
+	public void setFigureStore(ComplianceDocumentFigureStore store) {
+		figureStore=store;
+	}
+
+	//reads in the images of figures kept in the figure store, figures keep their dcom:imageHash and dcom:imageSize only if the image could not be read
+	private ComplianceDocument loadFigures(ComplianceDocument document) {
+		if (document!=null) loadFigures((ComplianceItem)document);
+		return document;
+	}
+
+	private void loadFigures(ComplianceItem item) {
+		if (item instanceof Paragraph) {
+			Paragraph p=(Paragraph)item;
+			for (int i=0; i < p.getNoInserts();i++) {
+				Insert insert=p.getInsert(i);
+				if (!(insert instanceof Figure) || !insert.hasMetaData(OrientDBComplianceDocumentDeserialiser.IMAGE_HASH)) continue;
+				String hash=insert.getMetaDataString(OrientDBComplianceDocumentDeserialiser.IMAGE_HASH);
+				try {
+					if (figureStore==null) throw new IOException("No figure store configured");
+					((Figure)insert).setImageData(figureStore.getImageData(hash));
+					//the hash only tells images=lazy clients where to fetch the image, with the image in place the figure is as it was uploaded
+					insert.removeMetaData(OrientDBComplianceDocumentDeserialiser.IMAGE_HASH);
+					insert.removeMetaData(OrientDBComplianceDocumentDeserialiser.IMAGE_SIZE);
+				} catch (IOException e) {
+					LOGGER.error("Could not read figure "+hash+":"+e.getMessage());
+				}
+			}
 		}
+		for (int i=0; i < item.getNoSubItems();i++) loadFigures(item.getSubItem(i));
+	}
+
+	//the pool is thread safe so there is no need to serialise callers here
+	private ODatabaseSession getSession() {
+		return sessionPool.acquire();
 	}
 	
-	private synchronized ODatabaseSession getSession() {
-    ODatabaseSession session=null;
-    try {
-      session= dbPool.acquire();
-    }  catch (OAcquireTimeoutException e) {
-      e.printStackTrace();
-    }
-    return session;
-  }
+	private void releaseSession(ODatabaseSession session) {
+		sessionPool.release(session);
+	}
+	
+	public OrientDBSessionPool getSessionPool() {
+		return sessionPool;
+	}
 
 	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex() {
 		return getDocumentIndex(null,null);
@@ -105,159 +173,334 @@ public class OrientDBComplianceDocumentDatabase implements ComplianceDocumentDat
 	}
 	
 	public ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction,String type) {
+		return getDocumentIndex(jurisdiction,type,null);
+	}
+	
+	public ComplianceDocumentIndexItem getDocumentIndexItem(String jurisdiction,String type,String shortName) {
+		ArrayList<ComplianceDocumentIndexItem> results=getDocumentIndex(jurisdiction,type,shortName);
+		return results.isEmpty() ? null : results.get(0);
+	}
+	
+	private ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(String jurisdiction,String type,String shortName) {
 		ODatabaseSession session=getSession();
+		try {
+			return getDocumentIndex(session,jurisdiction,type,shortName);
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	//runs on the given session, a single command however many documents and versions there are
+	ArrayList<ComplianceDocumentIndexItem> getDocumentIndex(ODatabaseSession session,String jurisdiction,String type,String shortName) {
 		ArrayList<ComplianceDocumentIndexItem> results = new ArrayList<ComplianceDocumentIndexItem>();
-		String q="select @rid from ComplianceDocument";
-		if (jurisdiction!=null || type!=null) q+=" where ";
-		if (jurisdiction!=null) q+="spatialCoverage contains '"+jurisdiction+"'";
-		if (type!=null && jurisdiction!=null) q+=" and ";
-		if (type!=null) q+=" type='"+type+"'";
-		OResultSet rs = session.command(q);
+		//one query brings back each document together with its versions, newest first
+		String q="select @rid as rid, identifier, shortName, title, language, type, spatialCoverage, embeddedLogic, latestVersion.versionName as latestVersionName, $versions as versions from ComplianceDocument";
+		q+=" let $versions=(select versionName, versionDate from Version where partOf=$parent.$current.@rid order by versionDate DESC, @rid DESC)";
+		ArrayList<String> conditions=new ArrayList<String>();
+		ArrayList<Object> args=new ArrayList<Object>();
+		if (jurisdiction!=null) {
+			conditions.add("spatialCoverage contains ?");
+			args.add(jurisdiction);
+		}
+		if (type!=null) {
+			conditions.add("type=?");
+			args.add(type);
+		}
+		if (shortName!=null) {
+			conditions.add("shortName=?");
+			args.add(shortName);
+		}
+		if (!conditions.isEmpty()) q+=" where "+String.join(" and ",conditions);
+		OResultSet rs = session.command(q,args.toArray());
 		while (rs.hasNext()) {
 				OResult r=rs.next();
-				results.add(getDocumentIndexData(session,r.getProperty("@rid").toString()));
+				results.add(getDocumentIndexData(r));
+				//the index has every RID to hand so remember them for later lookups
+				List<Object> coverage=r.getProperty("spatialCoverage");
+				if (coverage!=null) {
+					for (Object j: coverage) documentIds.put(documentKey(j.toString(),r.getProperty("type").toString(),r.getProperty("shortName").toString()),r.getProperty("rid").toString());
+				}
 		}
-		session.close();
+		rs.close();
 		return results;
 	}
 	
 
-	private ComplianceDocumentIndexItem getDocumentIndexData(ODatabaseSession session,String dId) {
-		OResultSet rs = session.command("select from "+dId);
-		if (rs.hasNext()) {
-			OResult r=rs.next();
-			String uid=r.getProperty("identifier").toString();
-			String shortName=r.getProperty("shortName").toString();
-			String fullName=r.getProperty("title").toString();
-			String language=r.getProperty("language").toString().replace("[","").replace("]","");
-			String documentType=r.getProperty("type").toString();
-			String jurisdiction=r.getProperty("spatialCoverage").toString().replace("[","").replace("]","");
-			String embeddedLogic=null;
-			if (r.hasProperty("embeddedLogic")) embeddedLogic=r.getProperty("embeddedLogic").toString();
-			String latestVersion=null;
-			String latestVersionDate=null;
-			OResultSet rs2 = session.command("select from Version where partOf="+dId+" order by versionDate DESC");
-			boolean first=true;
-			ArrayList<HashMap<String,String>> versions=new ArrayList<HashMap<String,String>>();
-			while (rs2.hasNext()) {
-				OResult r2=rs2.next();
+	private ComplianceDocumentIndexItem getDocumentIndexData(OResult r) {
+		String uid=r.getProperty("identifier").toString();
+		String shortName=r.getProperty("shortName").toString();
+		String fullName=r.getProperty("title").toString();
+		String language=r.getProperty("language").toString().replace("[","").replace("]","");
+		String documentType=r.getProperty("type").toString();
+		String jurisdiction=r.getProperty("spatialCoverage").toString().replace("[","").replace("]","");
+		String embeddedLogic=null;
+		if (r.getProperty("embeddedLogic")!=null) embeddedLogic=r.getProperty("embeddedLogic").toString();
+		String latestVersion=null;
+		String latestVersionDate=null;
+		ArrayList<HashMap<String,String>> versions=new ArrayList<HashMap<String,String>>();
+		List<OResult> versionResults=r.getProperty("versions");
+		if (versionResults!=null) {
+			for (OResult r2: versionResults) {
 				HashMap<String,String> versionInfo=new HashMap<String,String>();
-					if (first){
-						latestVersion=r2.getProperty("versionName").toString();
-						latestVersionDate=r2.getProperty("versionDate").toString();
-						first=false;
-					}
 				String version=r2.getProperty("versionName").toString();
 				String versionDate=r2.getProperty("versionDate").toString();
+				if (latestVersion==null) {
+					latestVersion=version;
+					latestVersionDate=versionDate;
+				}
 				versionInfo.put("versionName",version);
 				versionInfo.put("versionDate",versionDate);
 				versions.add(versionInfo);
-					
 			}
-			return new ComplianceDocumentIndexItem(uid,shortName,fullName,documentType,jurisdiction,embeddedLogic,latestVersion,latestVersionDate,versions);
 		}
-		return null;
+		if (r.getProperty("latestVersionName")!=null) {
+			//the link is authoritative where versions share a date
+			latestVersion=r.getProperty("latestVersionName").toString();
+			for (HashMap<String,String> versionInfo: versions) {
+				if (versionInfo.get("versionName").equals(latestVersion)) latestVersionDate=versionInfo.get("versionDate");
+			}
+		}
+		return new ComplianceDocumentIndexItem(uid,shortName,fullName,documentType,jurisdiction,embeddedLogic,latestVersion,latestVersionDate,versions);
+	}
+	
+	private static String documentKey(String jurisdiction,String type,String shortName) {
+		return jurisdiction+"/"+type+"/"+shortName;
 	}
 	
-	private String getDocumentId(String jurisdiction,String type,String shortName) {
+	//documents are never deleted so once a document has a RID it keeps it, misses are not remembered so a newly created document is always found
+	public String getDocumentId(String jurisdiction,String type,String shortName) {
+		String key=documentKey(jurisdiction,type,shortName);
+		String documentId=documentIds.get(key);
+		if (documentId!=null) return documentId;
 		ODatabaseSession session=getSession();
-		ArrayList<ComplianceDocumentIndexItem> results = new ArrayList<ComplianceDocumentIndexItem>();
-		String q="select @rid from ComplianceDocument where spatialCoverage contains '"+jurisdiction+"'";
-		q+=" and type='"+type+"' and shortName='"+shortName+"'";
-		OResultSet rs = session.command(q);
-		String documentId=null;
-		if (rs.hasNext()) {
-				OResult r=rs.next();
-				documentId=r.getProperty("@rid").toString();
+		try {
+			String q="select @rid from ComplianceDocument where spatialCoverage contains '"+jurisdiction+"'";
+			q+=" and type='"+type+"' and shortName='"+shortName+"'";
+			OResultSet rs = session.command(q);
+			if (rs.hasNext()) {
+					OResult r=rs.next();
+					documentId=r.getProperty("@rid").toString();
+					documentIds.put(key,documentId);
+			}
+		} finally {
+			releaseSession(session);
 		}
-		session.close();
 		return documentId;
 	}
 	
 	
 	public String getLatestVersion(String jurisdiction,String type,String shortName) {
 		String dId=getDocumentId(jurisdiction,type,shortName);
+		if (dId==null) return null;
 		ODatabaseSession session=getSession();
-		OResultSet rs = session.command("select from Version where partOf="+dId+" order by versionDate DESC limit 1");
-		String versionName=null;
+		try {
+			return getLatestVersion(session,dId);
+		} finally {
+			releaseSession(session);
+		}
+	}
+	
+	public String getLatestVersion(ODatabaseSession session,String dId) {
+		String versionName=latestVersions.get(dId);
+		if (versionName!=null) return versionName;
+		OResultSet rs = session.command("select latestVersion.versionName as versionName from "+dId);
 		if (rs.hasNext()) {
 			OResult r=rs.next();
-			versionName=r.getProperty("versionName").toString();
+			if (r.getProperty("versionName")!=null) versionName=r.getProperty("versionName").toString();
 		}
-		session.close();
+		if (versionName!=null) latestVersions.put(dId,versionName);
 		return versionName;
 	}
 	
 	
 	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version) {
+		return getDocument(baseURI,jurisdiction,type,shortName,getDocumentId(jurisdiction,type,shortName),version);
+	}
+	
+	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String dId,String version) {
+		ODatabaseSession session=getSession();
+		try {
+			String url=baseURI+"/"+jurisdiction+"/"+type+"/"+shortName+"/"+version;
+			return loadFigures(OrientDBComplianceDocumentDeserialiser.parseComplianceDocument(url,session,dId,version,batchLoading,ComplianceDocumentLoadOptions.FULL,parallelLoader));
+		} finally {
+			releaseSession(session);
+		}
+	}
+	
+	public ComplianceDocument getDocument(String baseURI,String jurisdiction,String type,String shortName,String version,ComplianceDocumentLoadOptions options) {
 		String dId=getDocumentId(jurisdiction,type,shortName);
 		ODatabaseSession session=getSession();
-		String url=baseURI+"/"+jurisdiction+"/"+type+"/"+shortName+"/"+version;
-		ComplianceDocument doc=OrientDBComplianceDocumentDeserialiser.parseComplianceDocument(url,session,dId,version);
-		session.close();
-		return doc;
+		try {
+			String url=baseURI+"/"+jurisdiction+"/"+type+"/"+shortName+"/"+version;
+			ComplianceDocument document=OrientDBComplianceDocumentDeserialiser.parseComplianceDocument(url,session,dId,version,batchLoading,options,parallelLoader);
+			if (options.loadImages()) loadFigures(document);
+			return document;
+		} finally {
+			releaseSession(session);
+		}
+	}
+	
+	public ComplianceDocument getReadOnlyDocument(String baseURI,String jurisdiction,String type,String shortName,String version) {
+		return getDocument(baseURI,jurisdiction,type,shortName,version);
+	}
+	
+	public ComplianceDocument getDiff(String baseURI,String jurisdiction,String type,String shortName,String version,String previousVersion) {
+		String dId=getDocumentId(jurisdiction,type,shortName);
+		ODatabaseSession session=getSession();
+		try {
+			String url=baseURI+"/"+jurisdiction+"/"+type+"/"+shortName+"/"+version;
+			return loadFigures(OrientDBDocumentDiff.diff(url,session,dId,version,previousVersion,batchLoading));
+		} finally {
+			releaseSession(session);
+		}
+	}
+	
+	//built the first time a version is asked for and kept in memory only, so reads never write to the database
+	private OrientDBAccessPathIndex getAccessPathIndex(ODatabaseSession session,String url,String dId,String version) {
+		String key=dId+"|"+version;
+		synchronized (accessPathIndexes) {
+			OrientDBAccessPathIndex index=accessPathIndexes.get(key);
+			if (index!=null) return index;
+		}
+		//taken before loading so an index of a version rewritten meanwhile is used for this request but not kept
+		long generation=accessPathGeneration.get();
+		OrientDBDocumentRecords records=new OrientDBDocumentRecords(session);
+		ComplianceDocument document=OrientDBComplianceDocumentDeserialiser.parseComplianceDocument(url,records,dId,version,batchLoading);
+		if (document==null) return null;
+		OrientDBAccessPathIndex index=OrientDBAccessPathIndex.build(document,records,url);
+		LOGGER.info("Built access path index of "+index.size()+" paths for "+url);
+		synchronized (accessPathIndexes) {
+			if (generation==accessPathGeneration.get()) accessPathIndexes.put(key,index);
+		}
+		return index;
+	}
+	
+	public ComplianceDocument getDocumentFragment(String baseURI,String jurisdiction,String type,String shortName,String version,String documentReference) {
+		String dId=getDocumentId(jurisdiction,type,shortName);
+		if (dId!=null) {
+			ODatabaseSession session=getSession();
+			try {
+				String url=baseURI+"/"+jurisdiction+"/"+type+"/"+shortName+"/"+version;
+				OrientDBAccessPathIndex index=getAccessPathIndex(session,url,dId,version);
+				List<String> chains=index==null ? null : index.get(documentReference);
+				if (chains!=null) {
+					ComplianceDocument fragment=OrientDBComplianceDocumentDeserialiser.parseComplianceDocumentFragment(url,new OrientDBDocumentRecords(session),dId,version,chains,documentReference);
+					if (fragment!=null) return loadFigures(fragment);
+				}
+			} finally {
+				releaseSession(session);
+			}
+		}
+		//references the index cannot answer are filtered out of the whole version as before
+		ComplianceDocument document=getDocument(baseURI,jurisdiction,type,shortName,version);
+		if (document==null) return null;
+		return ComplianceDocumentFilter.filterPath(document,documentReference);
 	}
 	
 	public boolean checkVersionExists(String jurisdiction,String type,String shortName,String version) {
 			String dId=getDocumentId(jurisdiction,type,shortName);
+			if (dId==null) return false;
 			ODatabaseSession session=getSession();
-			OResultSet rs = session.command("select from Version where partOf="+dId+" and versionName='"+version+"'");
-			boolean response=rs.hasNext();
-			session.close();
-			return response;
+			try {
+				return checkVersionExists(session,dId,version);
+			} finally {
+				releaseSession(session);
+			}
+	}
+	
+	public boolean checkVersionExists(ODatabaseSession session,String dId,String version) {
+			OResultSet rs = session.command("select from Version where partOf="+dId+" and versionName=?",version);
+			return rs.hasNext();
 	}
 	
 
 	
+	// creates a version as a clone of the previous one and moves the document's latestVersion link to it, within the caller's transaction
+	private OVertex createVersion(ODatabaseSession session,OElement document,String versionName,OResult previous) {
+		OVertex version=session.newVertex("Version");
+		version.setProperty("versionName",versionName);
+		version.setProperty("versionDate",new Date());
+		version.setProperty("partOf",document);
+		OElement previousVersion=null;
+		if (previous!=null) {
+			previousVersion=session.load(new ORecordId(previous.getProperty("@rid").toString()));
+			version.setProperty("replaces",previousVersion.getIdentity());
+			ArrayList<OIdentifiable> sections=new ArrayList<OIdentifiable>();
+			ArrayList<Object> consistsOf=(ArrayList<Object>)previous.getProperty("sections");
+			if (consistsOf!=null) {
+				for (Object section:consistsOf) sections.add(((OIdentifiable)section).getIdentity());
+			}
+			version.setProperty("sections",sections);
+		}
+		version.save();
+		if (previousVersion!=null) {
+			previousVersion.setProperty("replacedBy",version);
+			previousVersion.save();
+		}
+		document.setProperty("latestVersion",version);
+		document.save();
+		return version;
+	}
+	
 	public void updateDocument(String jurisdiction,String type,String shortName,ComplianceDocument inDoc) throws Exception {
+		//resolve the document once and do all the work on one session, in one transaction so a failed upload leaves nothing behind
 		String dId=getDocumentId(jurisdiction,type,shortName);
-		if (dId==null) {
-				//we need to create the document
-				ODatabaseSession session=getSession();
-				dId=OrientDBHelpers.getInsertId(session.command("create vertex ComplianceDocument"));
-				OrientDBComplianceDocumentSerialiser.updateMetaData(session,dId,inDoc);
-				StringBuffer str=new StringBuffer();
-				str.append("update ").append(dId).append(" set spatialCoverage=['").append(jurisdiction).append("'], type='").append(type).append("', shortName='").append(shortName).append("'");
-				session.command(str.toString());
-				session.close();
-				
-		}
-		System.out.println(getLatestVersion(jurisdiction,type,shortName)+":"+inDoc.getVersion());
-		if (!checkVersionExists(jurisdiction,type,shortName,inDoc.getVersion())) {
-			//check if this version exists and if it does not create it as a clone
-			String oVersion=getLatestVersion(jurisdiction,type,shortName);
-			
-			ODatabaseSession session=getSession();
-
-			OResultSet rs = session.command("select from Version where partOf="+dId+" and versionName='"+oVersion+"'");
-			if (rs.hasNext()) {
-					OResult r=rs.next();
-					StringBuffer str=new StringBuffer();
-					str.append("create vertex Version set versionName='").append(inDoc.getVersion()).append("', versionDate=date(),");
-					str.append(" replaces=").append(r.getProperty("@rid").toString()).append(", partOf=").append(dId).append(", sections=[");
-					ArrayList<Object> consistsOf=(ArrayList<Object>)r.getProperty("sections");
-					boolean first=true;
-					for (Object section:consistsOf) {
-						if (first) first=false;
-						else str.append(",");
-						OElement element=(OElement)section;
-						str.append(element.getIdentity().toString());
-					}
-					str.append("]");
-					String nId=OrientDBHelpers.getInsertId(session.command(str.toString()));
-					session.command("update "+r.getProperty("@rid").toString()+" set replacedBy="+nId);
+		ODatabaseSession session=getSession();
+		try {
+			session.begin();
+			OElement document;
+			OElement version;
+			String oVersion=null;
+			boolean newVersion=false;
+			if (dId==null) {
+					//we need to create the document
+					document=session.newVertex("ComplianceDocument");
+					OrientDBComplianceDocumentSerialiser.updateMetaData(document,inDoc);
+					ArrayList<String> spatialCoverage=new ArrayList<String>();
+					spatialCoverage.add(jurisdiction);
+					document.setProperty("spatialCoverage",spatialCoverage);
+					document.setProperty("type",type);
+					document.setProperty("shortName",shortName);
+					document.save();
 			} else {
-				//ok this is the first version of this document
-				StringBuffer str=new StringBuffer();
-				str.append("create vertex Version set versionName='").append(inDoc.getVersion()).append("', versionDate=date()").append(", partOf=").append(dId);
-				System.out.println(str.toString());
-				session.command(str.toString());
+					document=session.load(new ORecordId(dId));
+					oVersion=getLatestVersion(session,dId);
 			}
-			session.close();
-		} 
-		ODatabaseSession session=getSession();
-		OrientDBComplianceDocumentSerialiser.serialise(session,dId,inDoc);
-		session.close();
+			LOGGER.debug("Updating Version:"+oVersion+":"+inDoc.getVersion());
+			OResultSet rs=null;
+			if (dId!=null) rs=session.command("select from Version where partOf="+dId+" and versionName=?",inDoc.getVersion());
+			if (rs!=null && rs.hasNext()) {
+				version=session.load(new ORecordId(rs.next().getProperty("@rid").toString()));
+			} else {
+				//check if this version exists and if it does not create it as a clone
+				OResult previous=null;
+				if (oVersion!=null) {
+					OResultSet rs2 = session.command("select from Version where partOf="+dId+" and versionName=?",oVersion);
+					if (rs2.hasNext()) previous=rs2.next();
+				}
+				//if there is no previous version this is the first version of this document
+				version=createVersion(session,document,inDoc.getVersion(),previous);
+				newVersion=true;
+			}
+			OrientDBComplianceDocumentSerialiser.serialise(session,version,inDoc,figureStore);
+			session.commit();
+			//only remembered once the transaction has committed as new RIDs are not final until then
+			if (dId==null) {
+				dId=document.getIdentity().toString();
+				documentIds.put(documentKey(jurisdiction,type,shortName),dId);
+			}
+			if (newVersion) latestVersions.put(dId,inDoc.getVersion());
+			//the content may have been rewritten so the paths have to be worked out again
+			synchronized (accessPathIndexes) {
+				accessPathGeneration.incrementAndGet();
+				accessPathIndexes.remove(dId+"|"+inDoc.getVersion());
+			}
+		} catch (Exception e) {
+			session.rollback();
+			throw e;
+		} finally {
+			releaseSession(session);
+		}
 	}
 
 }
\ No newline at end of file
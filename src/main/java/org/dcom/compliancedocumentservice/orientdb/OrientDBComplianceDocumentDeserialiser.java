@@ -19,14 +19,20 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package org.dcom.compliancedocumentservice.orientdb;
 
 import org.dcom.core.compliancedocument.*;
+import org.dcom.compliancedocumentservice.ComplianceDocumentCopier;
+import org.dcom.compliancedocumentservice.ComplianceDocumentFilter;
+import org.dcom.compliancedocumentservice.ComplianceDocumentLoadOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.orientechnologies.orient.core.sql.executor.OResultSet;
 import com.orientechnologies.orient.core.sql.executor.OResult;
 import com.orientechnologies.orient.core.db.ODatabaseSession;
-import com.orientechnologies.orient.core.record.ORecord;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
 *This class takes a orientdb database that contains a compliance document and creates from it an in memory compliance document.
@@ -35,39 +41,54 @@ import java.util.HashSet;
 public class OrientDBComplianceDocumentDeserialiser {
 
   private static final Logger LOGGER = LoggerFactory.getLogger( OrientDBComplianceDocumentDeserialiser.class );
+  // set on figures whose image is in the figure store, it can be fetched from /_figures/{hash}
+  public static final String IMAGE_HASH="dcom:imageHash";
+  public static final String IMAGE_SIZE="dcom:imageSize";
 
   public static ComplianceDocument parseComplianceDocument(String url,ODatabaseSession session,String docId,String version) {
+    return parseComplianceDocument(url,session,docId,version,true);
+  }
+
+  // when batch is set the whole tree below the version is pulled with one traverse rather than one query per node
+  public static ComplianceDocument parseComplianceDocument(String url,ODatabaseSession session,String docId,String version,boolean batch) {
+    return parseComplianceDocument(url,new OrientDBDocumentRecords(session),docId,version,batch);
+  }
+
+  public static ComplianceDocument parseComplianceDocument(String url,ODatabaseSession session,String docId,String version,boolean batch,ComplianceDocumentLoadOptions options) {
+    return parseComplianceDocument(url,session,docId,version,batch,options,null);
+  }
+
+  public static ComplianceDocument parseComplianceDocument(String url,ODatabaseSession session,String docId,String version,boolean batch,ComplianceDocumentLoadOptions options,OrientDBParallelLoader parallelLoader) {
+    return parseComplianceDocument(url,new OrientDBDocumentRecords(session,options),docId,version,batch,parallelLoader);
+  }
+
+  // afterwards records can give the RID each item was read from
+  public static ComplianceDocument parseComplianceDocument(String url,OrientDBDocumentRecords records,String docId,String version,boolean batch) {
+    return parseComplianceDocument(url,records,docId,version,batch,null);
+  }
+
+  // with a parallel loader the top level sections, and the rows of large tables, are each loaded on their own session
+  public static ComplianceDocument parseComplianceDocument(String url,OrientDBDocumentRecords records,String docId,String version,boolean batch,OrientDBParallelLoader parallelLoader) {
     try {
+      ODatabaseSession session=records.getSession();
       ComplianceDocument document = new ComplianceDocument();
       document.setMetaData("ckterms:accessLocation",url);
       OResultSet rs = session.command("select from "+docId);
       if (rs.hasNext()) {
         OResult r=rs.next();
         parseMetaData(document,r);
-        OResultSet rs2=session.command("select from Version where versionName='"+version+"' and partOf="+docId);
+        OResultSet rs2=session.command("select from Version where versionName=? and partOf="+docId,version);
         if (rs2.hasNext()) {
           OResult r2=rs2.next();
-          document.removeMetaData("dcterms:version"); // remove the version so it is pulled from the version
-          document.setMetaData("dcterms:version",version);
-          parseMetaData(document,r2);
-          if (document.hasMetaData("dcterms:replaces")) {
-              OResultSet rsLookup=session.command("select from "+document.getMetaDataString("dcterms:replaces"));
-              document.removeMetaData("dcterms:replaces");
-              if (rsLookup.hasNext()) {
-                OResult rLookup=rsLookup.next();
-                document.setMetaData("dcterms:replaces",rLookup.getProperty("versionName"));
-              }
-          }
-          if (document.hasMetaData("dcterms:replacedBy")) {
-            OResultSet rsLookup=session.command("select from "+document.getMetaDataString("dcterms:replacedBy"));
-            document.removeMetaData("dcterms:replacedBy");
-            if (rsLookup.hasNext()) {
-              OResult rLookup=rsLookup.next();
-              document.setMetaData("dcterms:replacedBy",rLookup.getProperty("versionName"));
-            }
+          parseVersionMetaData(document,session,r2,version);
+          boolean parallel=parallelLoader!=null && getIds(r2,"sections").size() > 1;
+          if (batch && !parallel) {
+            //a single section can still have its large tables read in parallel
+            if (parallelLoader!=null) parallelLoader.prefetch(records,OrientDBDocumentRecords.getId(r2));
+            else records.prefetch(OrientDBDocumentRecords.getId(r2));
           }
           if (r2.hasProperty("sections")) {
-            ArrayList<ORecord> sections =(ArrayList<ORecord>)r2.getProperty("sections");
+            List<OIdentifiable> sections=(List<OIdentifiable>)r2.getProperty("sections");
             int number=1;
             if (document.hasMetaData("dcom:startSectionNumber")){
               number=Integer.parseInt(document.getMetaDataString("dcom:startSectionNumber"));    
@@ -76,12 +97,25 @@ public class OrientDBComplianceDocumentDeserialiser {
             if (document.hasMetaData("dcom:startParagraphNumber")){
                 startParaNumber=Integer.parseInt(document.getMetaDataString("dcom:startParagraphNumber"));
             }
-            for (int i=0; i < sections.size();i++) {
-              Section s=parseSection(document,url,number,startParaNumber,session,sections.get(i).getIdentity().toString(),document);
-              if (s.hasMetaData("numbered") && s.getMetaDataString("numbered").equalsIgnoreCase("global")){
-                number++;
+            if (parallel) {
+              ArrayList<String> ids=getIds(r2,"sections");
+              ArrayList<Integer> numbers=new ArrayList<Integer>();
+              records.fetch(ids);
+              for (String id: ids) {
+                numbers.add(number);
+                Section probe=new Section(document);
+                parseMetaData(probe,records.get(id));
+                if (isGlobal(probe)) number++;
+              }
+              for (Section s: parallelLoader.parseSections(document,url,ids,numbers,startParaNumber,records,batch)) document.addSection(s);
+            } else {
+              for (int i=0; i < sections.size();i++) {
+                Section s=parseSection(document,url,number,startParaNumber,records,sections.get(i).getIdentity().toString(),document);
+                if (s.hasMetaData("numbered") && s.getMetaDataString("numbered").equalsIgnoreCase("global")){
+                  number++;
+                }
+                document.addSection(s);
               }
-              document.addSection(s);
             }
           }  
         }
@@ -95,10 +129,208 @@ public class OrientDBComplianceDocumentDeserialiser {
     return null;
   }
 
-  private static Section parseSection(ComplianceDocument document,String url,Integer myNumber,Integer paraNumberContinuation,ODatabaseSession session,String id,ComplianceItem parent) {
+  static void parseVersionMetaData(ComplianceDocument document,ODatabaseSession session,OResult r2,String version) {
+    document.removeMetaData("dcterms:version"); // remove the version so it is pulled from the version
+    document.setMetaData("dcterms:version",version);
+    parseMetaData(document,r2);
+    if (document.hasMetaData("dcterms:replaces")) {
+        OResultSet rsLookup=session.command("select from "+document.getMetaDataString("dcterms:replaces"));
+        document.removeMetaData("dcterms:replaces");
+        if (rsLookup.hasNext()) {
+          OResult rLookup=rsLookup.next();
+          document.setMetaData("dcterms:replaces",rLookup.getProperty("versionName"));
+        }
+    }
+    if (document.hasMetaData("dcterms:replacedBy")) {
+      OResultSet rsLookup=session.command("select from "+document.getMetaDataString("dcterms:replacedBy"));
+      document.removeMetaData("dcterms:replacedBy");
+      if (rsLookup.hasNext()) {
+        OResult rLookup=rsLookup.next();
+        document.setMetaData("dcterms:replacedBy",rLookup.getProperty("versionName"));
+      }
+    }
+  }
+
+  // builds a document of just the items ComplianceDocumentFilter.filterPath keeps for documentReference (chains are its entries in the access path index) and then filters that, so the result is what filtering the whole version gives
+  // the kept items are read whole and the items above them as shells, siblings are never read and the numbers they would have given are taken from the chains. Null if the fragment needs something only the whole document can give
+  public static ComplianceDocument parseComplianceDocumentFragment(String url,OrientDBDocumentRecords records,String docId,String version,List<String> chains,String documentReference) {
+    try {
+      ODatabaseSession session=records.getSession();
+      // the document as stored, numbering is worked out against this and the kept items are added to it
+      ComplianceDocument source=new ComplianceDocument();
+      source.setMetaData("ckterms:accessLocation",url);
+      OResultSet rs=session.command("select from "+docId);
+      if (!rs.hasNext()) return null;
+      parseMetaData(source,rs.next());
+      rs.close();
+      OResultSet rs2=session.command("select from Version where versionName=? and partOf="+docId,version);
+      if (!rs2.hasNext()) return null;
+      parseVersionMetaData(source,session,rs2.next(),version);
+      rs2.close();
+      int startParaNumber=1;
+      if (source.hasMetaData("dcom:startParagraphNumber")){
+          startParaNumber=Integer.parseInt(source.getMetaDataString("dcom:startParagraphNumber"));
+      }
+
+      String[] pathArray=OrientDBAccessPathIndex.normalisePath(documentReference).split("/");
+      if (pathArray[0].equals("Figure") || pathArray[0].equals("Table")) {
+        String[] entries=chains.get(0).split("/");
+        String id=entries[entries.length-1];
+        records.prefetch(id);
+        ComplianceDocument document=new ComplianceDocument();
+        ComplianceDocumentCopier.copyMetaData(source,document);
+        Section s=new Section(document);
+        Paragraph p=new Paragraph(s);
+        p.addInsert(parseInsert(records,id,p));
+        s.addParagraph(p);
+        document.addSection(s);
+        return document;
+      }
+
+      //the items above the kept ones are read in one go
+      LinkedHashSet<String> ancestors=new LinkedHashSet<String>();
+      for (String chain: chains) {
+        String[] entries=chain.split("/");
+        for (int i=0; i < entries.length-1;i++) ancestors.add(chainId(entries[i]));
+      }
+      records.fetch(new ArrayList<String>(ancestors));
+
+      HashMap<String,ComplianceItem> shells=new HashMap<String,ComplianceItem>();
+      HashMap<String,String> shellUrls=new HashMap<String,String>();
+      for (String chain: chains) {
+        String[] entries=chain.split("/");
+        int last=entries.length-1;
+        ComplianceItem parent=source;
+        String parentUrl=url;
+        for (int i=0; i < last;i++) {
+          String id=chainId(entries[i]);
+          Integer number=chainNumber(entries[i]);
+          ComplianceItem shell=shells.get(id);
+          if (shell==null) {
+            OResult r=records.get(id);
+            if (isSection(r)) {
+              Section s=new Section(parent);
+              if (number!=null) s.setNumber(number);
+              parseMetaData(s,r);
+              s.setHighestParaNumber(chainParagraphs(entries[i])[1]);
+              shell=s;
+            } else {
+              Paragraph p=new Paragraph(parent);
+              p.setNumber(number);
+              parseMetaData(p,r);
+              if (r.hasProperty("body")) p.setBodyText(r.getProperty("body").toString());
+              for (String ruleId: getIds(r,"rules")) p.addRule(parseRule(records,ruleId,parent));
+              shell=p;
+            }
+            String location=accessLocation(parentUrl,shell,number);
+            if (location!=null) shell.setMetaData("ckterms:accessLocation",location);
+            //an untitled section passes its url straight through, an untitled paragraph gives its children none
+            shellUrls.put(id,location!=null || shell instanceof Paragraph ? location : parentUrl);
+            addChild(parent,shell);
+            shells.put(id,shell);
+          }
+          parentUrl=shellUrls.get(id);
+          parent=shell;
+        }
+
+        String id=chainId(entries[last]);
+        Integer number=chainNumber(entries[last]);
+        records.prefetch(id);
+        OResult target=records.get(id);
+        ComplianceItem item;
+        String type=target.getProperty("@class").toString();
+        if (type.equals("Section")) {
+          // top level and globally numbered sections start their paragraph numbering afresh, others carry on from the paragraphs before them
+          int paraNumber=startParaNumber;
+          if (last > 0 && number==null) paraNumber=chainParagraphs(entries[last])[0];
+          item=parseSection(source,parentUrl,number,paraNumber,records,id,parent);
+        } else if (type.equals("Paragraph")) {
+          item=parseParagraph(parentUrl,number,records,id,parent);
+        } else {
+          if (!(parent instanceof Paragraph)) return null;
+          item=parseInsert(records,id,parent);
+        }
+        addChild(parent,item);
+      }
+      LOGGER.trace("Deserialising fragment "+documentReference+" of "+url+" from "+records.size()+" records");
+      return ComplianceDocumentFilter.filterPath(source,documentReference);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  //the parts of an access path index chain entry, see OrientDBAccessPathIndex
+  private static String chainId(String entry) {
+    int end=entry.length();
+    if (entry.indexOf('~')!=-1) end=entry.indexOf('~');
+    if (entry.indexOf('@')!=-1) end=Math.min(end,entry.indexOf('@'));
+    return entry.substring(0,end);
+  }
+
+  private static Integer chainNumber(String entry) {
+    int at=entry.indexOf('@');
+    if (at==-1) return null;
+    int end=entry.indexOf('~');
+    if (end==-1) end=entry.length();
+    return Integer.parseInt(entry.substring(at+1,end));
+  }
+
+  //the paragraph number a section started from and its highest paragraph number
+  private static int[] chainParagraphs(String entry) {
+    String[] numbers=entry.substring(entry.indexOf('~')+1).split("-");
+    return new int[] {Integer.parseInt(numbers[0]),Integer.parseInt(numbers[1])};
+  }
+
+  private static boolean isSection(OResult r) {
+    return r.getProperty("@class").toString().equals("Section");
+  }
+
+  static boolean isGlobal(ComplianceItem item) {
+    return item.hasMetaData("numbered") && item.getMetaDataString("numbered").equalsIgnoreCase("global");
+  }
+
+  //how far a section that is not globally numbered moves on the paragraph numbering of the paragraphs after it, as parseSection counts
+  static int continuedParagraphs(ComplianceItem section) {
+    int count=0;
+    for (int i=0; i < section.getNoSubItems();i++) {
+      ComplianceItem item=section.getSubItem(i);
+      if (item instanceof Section && !isGlobal(item)) count+=continuedParagraphs(item);
+      else if (item instanceof Paragraph && isGlobal(item)) count++;
+    }
+    return count;
+  }
+
+  private static ArrayList<String> getIds(OResult r,String field) {
+    ArrayList<String> ids=new ArrayList<String>();
+    if (!r.hasProperty(field) || r.getProperty(field)==null) return ids;
+    List<OIdentifiable> links=(List<OIdentifiable>)r.getProperty(field);
+    for (OIdentifiable link: links) ids.add(link.getIdentity().toString());
+    return ids;
+  }
+
+  private static void addChild(ComplianceItem parent,ComplianceItem child) {
+    if (parent instanceof ComplianceDocument) ((ComplianceDocument)parent).addSection((Section)child);
+    else if (parent instanceof Section && child instanceof Section) ((Section)parent).addSection((Section)child);
+    else if (parent instanceof Section) ((Section)parent).addParagraph((Paragraph)child);
+    else if (child instanceof Paragraph) ((Paragraph)parent).addParagraph((Paragraph)child);
+    else ((Paragraph)parent).addInsert((Insert)child);
+  }
+
+  //the access location an item gets below url, null if it is neither numbered nor titled
+  static String accessLocation(String url,ComplianceItem item,Integer number) {
+    if (url==null) return null;
+    if (isGlobal(item)) return url+"/"+number;
+    String title=item.getMetaDataString("dcterms:title");
+    if (title!=null && !title.equals("null")) return url+"/"+title.replace(" ","_");
+    return null;
+  }
+
+  static Section parseSection(ComplianceDocument document,String url,Integer myNumber,Integer paraNumberContinuation,OrientDBDocumentRecords records,String id,ComplianceItem parent) {
     Section section=new Section(parent);
     if (myNumber!=null) section.setNumber(myNumber);
-    OResult r=session.command("select from "+id).next();
+    OResult r=records.get(id);
+    records.parsed(section,id);
     parseMetaData(section,r);
     if (url!=null && section.hasMetaData("numbered") && section.getMetaDataString("numbered").equalsIgnoreCase("global")){
       url=url+"/"+myNumber;
@@ -117,16 +349,16 @@ public class OrientDBComplianceDocumentDeserialiser {
     int paraNumber=paraNumberContinuation;
     if (r.hasProperty("subItems")) {
       
-          ArrayList<ORecord> subItems = (ArrayList<ORecord>)r.getProperty("subItems");
+          List<OIdentifiable> subItems=(List<OIdentifiable>)r.getProperty("subItems");
           HashSet<String> sections=new HashSet<String>();
           HashSet<String> paragraphs=new HashSet<String>();
           
           if (r.hasProperty("sections")) {
-            ArrayList<ORecord> sectionsList = (ArrayList<ORecord>)r.getProperty("sections");
+            List<OIdentifiable> sectionsList=(List<OIdentifiable>)r.getProperty("sections");
             for (int i=0; i < sectionsList.size();i++) sections.add(sectionsList.get(i).getIdentity().toString());
           }
           if (r.hasProperty("paragraphs")) {
-            ArrayList<ORecord> paragraphsList = (ArrayList<ORecord>)r.getProperty("paragraphs");
+            List<OIdentifiable> paragraphsList=(List<OIdentifiable>)r.getProperty("paragraphs");
             for (int i=0; i < paragraphsList.size();i++) paragraphs.add(paragraphsList.get(i).getIdentity().toString());
           }
           
@@ -135,14 +367,14 @@ public class OrientDBComplianceDocumentDeserialiser {
             String identifier=subItems.get(i).getIdentity().toString();
             
             if (paragraphs.contains(identifier)) {
-                Paragraph p=parseParagraph(url,paraNumber,session,identifier,document);
+                Paragraph p=parseParagraph(url,paraNumber,records,identifier,document);
                 if (p.hasMetaData("numbered") && p.getMetaDataString("numbered").equalsIgnoreCase("global")) paraNumber++;
                 section.addParagraph(p);
   
             } else if (sections.contains(identifier)) {
                 Section s=new Section(parent);
                 //construct a temporary section here
-                OResult rTemp=session.command("select from "+identifier).next();
+                OResult rTemp=records.get(identifier);
                 parseMetaData(s,rTemp);
                 if (s.hasMetaData("numbered") && s.getMetaDataString("numbered").equalsIgnoreCase("global")) {
                   sectionNumber++;
@@ -150,9 +382,9 @@ public class OrientDBComplianceDocumentDeserialiser {
                   if (document.hasMetaData("dcom:startParagraphNumber")){
                       startParaNumber=Integer.parseInt(document.getMetaDataString("dcom:startParagraphNumber"));
                   }
-                  s=parseSection(document,url,sectionNumber,startParaNumber,session,identifier,s);
+                  s=parseSection(document,url,sectionNumber,startParaNumber,records,identifier,s);
                 } else {
-                  s=parseSection(document,url,null,paraNumber,session,identifier,s);
+                  s=parseSection(document,url,null,paraNumber,records,identifier,s);
                   paraNumber=s.getHighestParaNumber();
                 }
                 section.addSection(s);
@@ -164,9 +396,10 @@ public class OrientDBComplianceDocumentDeserialiser {
     return section;
   }
 
-  private static Paragraph parseParagraph(String url,Integer myNumber,ODatabaseSession session,String id,ComplianceItem parent) {
+  private static Paragraph parseParagraph(String url,Integer myNumber,OrientDBDocumentRecords records,String id,ComplianceItem parent) {
     Paragraph paragraph=new Paragraph(parent);
-    OResult r=session.command("select from "+id).next();
+    OResult r=records.get(id);
+    records.parsed(paragraph,id);
     paragraph.setNumber(myNumber);
     parseMetaData(paragraph,r);
     if (url!=null && paragraph.hasMetaData("numbered") && paragraph.getMetaDataString("numbered").equalsIgnoreCase("global")){
@@ -178,66 +411,77 @@ public class OrientDBComplianceDocumentDeserialiser {
     } else {
       url=null;
     }
-    if (r.hasProperty("body")) { 
+    if (!records.getOptions().loadBodies()) {
+      paragraph.setBodyText("");
+    } else if (r.hasProperty("body")) { 
       paragraph.setBodyText(r.getProperty("body").toString());
     }
     if (r.hasProperty("paragraphs")) {
       int number=1;
-      ArrayList<ORecord> paragraphs =  (ArrayList<ORecord>)r.getProperty("paragraphs");
+      List<OIdentifiable> paragraphs=(List<OIdentifiable>)r.getProperty("paragraphs");
       for (int i=0; i < paragraphs.size();i++) {
-        Paragraph p=parseParagraph(url,number,session,paragraphs.get(i).getIdentity().toString(),paragraph);
+        Paragraph p=parseParagraph(url,number,records,paragraphs.get(i).getIdentity().toString(),paragraph);
         if (p.hasMetaData("numbered") && p.getMetaDataString("numbered").equalsIgnoreCase("global")) number++;
         paragraph.addParagraph(p);
       }
     }
     if (r.hasProperty("rules")) {
-      ArrayList<ORecord> rules =  (ArrayList<ORecord>)r.getProperty("rules");
-      for (int i=0; i < rules.size();i++) paragraph.addRule(parseRule(session,rules.get(i).getIdentity().toString(),parent));
+      List<OIdentifiable> rules=(List<OIdentifiable>)r.getProperty("rules");
+      for (int i=0; i < rules.size();i++) paragraph.addRule(parseRule(records,rules.get(i).getIdentity().toString(),parent));
     }
 
-    if (r.hasProperty("inserts")) {
-      ArrayList<ORecord> inserts =  (ArrayList<ORecord>)r.getProperty("inserts");
-      for (int i=0; i < inserts.size();i++) paragraph.addInsert(parseInsert(session,inserts.get(i).getIdentity().toString(),parent));
+    if (records.getOptions().loadInserts() && r.hasProperty("inserts")) {
+      List<OIdentifiable> inserts=(List<OIdentifiable>)r.getProperty("inserts");
+      for (int i=0; i < inserts.size();i++) paragraph.addInsert(parseInsert(records,inserts.get(i).getIdentity().toString(),parent));
     }
     LOGGER.info("Deserialising "+paragraph);
     return paragraph;
   }
 
-  private static Insert parseInsert(ODatabaseSession session, String id,ComplianceItem parent){
-      OResult r=session.command("select from "+id).next();
-      if (r.hasProperty("imageData")) {
+  static Insert parseInsert(OrientDBDocumentRecords records, String id,ComplianceItem parent){
+      OResult r=records.get(id);
+      if (r.hasProperty("imageData") || r.hasProperty("imageHash")) {
         //its an image
         Figure i=new Figure(parent);
+        records.parsed(i,id);
         parseMetaData(i,r);
-        i.setImageData(r.getProperty("imageData").toString());
+        if (r.hasProperty("imageHash")) {
+          //the image itself is in the figure store, it is read in afterwards if wanted and these are then taken off again
+          i.setMetaData(IMAGE_HASH,r.getProperty("imageHash").toString());
+          i.setMetaData(IMAGE_SIZE,r.getProperty("imageSize").toString());
+          i.setImageData("");
+        } else {
+          i.setImageData(r.getProperty("imageData").toString());
+        }
         LOGGER.info("Deserialising "+i);
         return i;
       } else {
         //its a table
         Table t=new Table(parent);
+        records.parsed(t,id);
         parseMetaData(t,r);
-        if (r.hasProperty("header") && r.getProperty("header")!=null ) t.setHeader(parseTableGroup(session,r.getProperty("header").toString(),new TableHeader(t)));
-        if (r.hasProperty("footer") && r.getProperty("footer")!=null ) t.setFooter(parseTableGroup(session,r.getProperty("footer").toString(),new TableFooter(t)));
-        if (r.hasProperty("body") && r.getProperty("body")!=null ) t.setBody(parseTableGroup(session,r.getProperty("body").toString(),new TableBody(t)));
+        if (r.hasProperty("header") && r.getProperty("header")!=null ) t.setHeader(parseTableGroup(records,r.getProperty("header").toString(),new TableHeader(t)));
+        if (r.hasProperty("footer") && r.getProperty("footer")!=null ) t.setFooter(parseTableGroup(records,r.getProperty("footer").toString(),new TableFooter(t)));
+        if (r.hasProperty("body") && r.getProperty("body")!=null ) t.setBody(parseTableGroup(records,r.getProperty("body").toString(),new TableBody(t)));
         LOGGER.info("Deserialising "+t);
         return t;
       }
   }
 
 
-  private static <T extends TableGroup> T parseTableGroup(ODatabaseSession session,String id,T tg) {
-    OResult r=session.command("select from "+id).next();
+  private static <T extends TableGroup> T parseTableGroup(OrientDBDocumentRecords records,String id,T tg) {
+    OResult r=records.get(id);
     parseMetaData(tg,r);
     if (r.hasProperty("rows")) {
-        ArrayList<ORecord> listRows=(ArrayList<ORecord>)r.getProperty("rows");
+        List<OIdentifiable> listRows=(List<OIdentifiable>)r.getProperty("rows");
         for (int i=0; i < listRows.size();i++) {
-          OResult r2=session.command("select from "+listRows.get(i).getIdentity().toString()).next();
+          OResult r2=records.get(listRows.get(i).getIdentity().toString());
           Row row=new Row(tg);
           parseMetaData(row,r2);
           tg.addRow(row);
-          ArrayList<ORecord> listCells=(ArrayList<ORecord>)r2.getProperty("cells");
+          List<OIdentifiable> listCells=(List<OIdentifiable>)r2.getProperty("cells");
           for (int x=0; x < listCells.size();x++) {
-            OResult r3=session.command("select from "+listCells.get(x).getIdentity().toString()).next();
+            OResult r3=records.get(listCells.get(x).getIdentity().toString());
             Cell c;
             if (r3.getProperty("@class").toString().equals("TitleCell")) {
               c=new TitleCell(row);
@@ -254,14 +498,14 @@ public class OrientDBComplianceDocumentDeserialiser {
     return tg;
   }
 
-  private static Rule parseRule(ODatabaseSession session,String id,ComplianceItem parent) {
+  static Rule parseRule(OrientDBDocumentRecords records,String id,ComplianceItem parent) {
     Rule rule =new Rule(parent);
-    parseMetaData(rule,session.command("select from "+id).next());
+    parseMetaData(rule,records.get(id));
     LOGGER.info("Deserialising "+rule);
     return rule;
   }
 
-  private static void parseMetaData(ComplianceItem item, OResult r) {
+  static void parseMetaData(ComplianceItem item, OResult r) {
     OrientDBMappings mappings=new OrientDBMappings();
     for (int i=0; i < mappings.getNoMappings();i++) {
       if (r.hasProperty(mappings.getO(i))) {
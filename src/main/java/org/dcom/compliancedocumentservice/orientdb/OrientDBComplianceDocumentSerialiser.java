@@ -21,13 +21,15 @@ package org.dcom.compliancedocumentservice.orientdb;
 
 import org.dcom.core.compliancedocument.*;
 import org.dcom.core.compliancedocument.utils.GuidHelper;
-import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import org.dcom.compliancedocumentservice.ComplianceDocumentFigureStore;
 import com.orientechnologies.orient.core.sql.executor.OResult;
 import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.record.OElement;
+import com.orientechnologies.orient.core.record.OVertex;
 import java.util.ArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.HashMap;
 
 /**
 * This class takes an in memory compliance document and writes it to an oritentDB database.
@@ -39,35 +41,35 @@ public class OrientDBComplianceDocumentSerialiser {
     
   
     
-    private static void updateDBRecord(ODatabaseSession session, String id,String subItemName,ArrayList<String> inArray) {
-      StringBuffer str=new StringBuffer();
-      
-      str.append("update ").append(id).append(" set ").append(subItemName).append("=[");
-      boolean first=true;
-      for (String nId:inArray) {
-        if (first) first=false; else str.append(",");
-        str.append(nId);
-      }
-      str.append("]");
-      session.command(str.toString());
+    //all writes go through the element API inside the caller's transaction so nothing reaches the server until it commits
+    private static void updateDBRecord(OElement element,String subItemName,ArrayList<String> inArray,OrientDBWriteContext context) {
+      ArrayList<OIdentifiable> links=new ArrayList<OIdentifiable>();
+      for (String nId:inArray) links.add(context.getLink(nId));
+      element.setProperty(subItemName,links);
+      element.save();
     }
     
-    private static String createNew(ODatabaseSession session,String type,String version) {
-      String nId=OrientDBHelpers.getInsertId(session.command("create vertex "+type+" set identifier='"+GuidHelper.generateGuid()+"', versionName='"+version+"'"));
-      return nId;
+    private static void updateDBRecord(OrientDBWriteContext context, String id,String subItemName,ArrayList<String> inArray) {
+      updateDBRecord(context.getElement(id),subItemName,inArray,context);
     }
     
-    private static String mapToId(ODatabaseSession session, ComplianceItem item) {
-      return  session.command("select @rid from V where identifier='"+item.getIdentifier()+"'").next().getProperty("@rid").toString();
+    private static String createNew(OrientDBWriteContext context,String type,ComplianceItem item) {
+      OVertex v=context.getSession().newVertex(type);
+      v.setProperty("identifier",GuidHelper.generateGuid());
+      v.setProperty("versionName",context.getVersion());
+      v.setProperty("contentHash",context.getContentHash(item));
+      v.save();
+      return context.created(v);
     }
-  
     
-    private static boolean detectChanges(ODatabaseSession session,ComplianceItem item,String version,ArrayList<String> ... inputs) throws Exception{
+    //a node whose stored content hash matches is reused whole, without visiting its children, by the serialise methods below
+    //the children have all been serialised before their parent so their RIDs come from the context rather than the database
+    private static boolean detectChanges(OrientDBWriteContext context,ComplianceItem item,ArrayList<String> ... inputs) throws Exception{
       boolean isChanges=false;
       boolean versionExists=false;
-      OResultSet rs=session.command("select from V where identifier='"+item.getIdentifier()+"'");
-      if (!rs.hasNext()) return true;
-      OResult r=rs.next();
+      String version=context.getVersion();
+      OResult r=context.getRecord(item);
+      if (r==null) return true;
       if (r.hasProperty("versionName")) {
           if (!r.getProperty("versionName").toString().equals(version)) {
             item.generateNewGuid();
@@ -108,7 +110,7 @@ public class OrientDBComplianceDocumentSerialiser {
         ArrayList<String> newSections=inputs[0];
         ArrayList<String> currentSections=new ArrayList<String>();
         for (int i=0; i < s.getNoSections();i++) {
-            currentSections.add(mapToId(session,s.getSection(i)));
+            currentSections.add(context.getId(s.getSection(i)));
         }
         if (!newSections.containsAll(currentSections) || currentSections.containsAll(newSections)) {
           isChanges=true;
@@ -117,7 +119,7 @@ public class OrientDBComplianceDocumentSerialiser {
         ArrayList<String> newParagraphs=inputs[1];
         ArrayList<String> currentParagraphs=new ArrayList<String>();
         for (int i=0; i < s.getNoParagraphs();i++) {
-            currentParagraphs.add(mapToId(session,s.getParagraph(i)));
+            currentParagraphs.add(context.getId(s.getParagraph(i)));
         }
         if (!newParagraphs.containsAll(currentParagraphs) || currentParagraphs.containsAll(newParagraphs)) {
           isChanges=true;
@@ -128,7 +130,7 @@ public class OrientDBComplianceDocumentSerialiser {
         ArrayList<String> newCells=inputs[0];
         ArrayList<String> currentCells=new ArrayList<String>();
         for (int i=0; i < rw.getNoCells();i++) {
-            currentCells.add(mapToId(session,rw.getCell(i)));
+            currentCells.add(context.getId(rw.getCell(i)));
         }
         if (!newCells.containsAll(currentCells) || currentCells.containsAll(newCells)) {
           isChanges=true;
@@ -138,9 +140,9 @@ public class OrientDBComplianceDocumentSerialiser {
         Table t=(Table)item;
         ArrayList<String> newTableGroups=inputs[0];
         ArrayList<String> currentTableGroups=new ArrayList<String>();
-        currentTableGroups.add(mapToId(session,t.getHeader()));
-        currentTableGroups.add(mapToId(session,t.getBody()));
-        currentTableGroups.add(mapToId(session,t.getFooter()));
+        currentTableGroups.add(context.getId(t.getHeader()));
+        currentTableGroups.add(context.getId(t.getBody()));
+        currentTableGroups.add(context.getId(t.getFooter()));
         if (!newTableGroups.containsAll(currentTableGroups) || currentTableGroups.containsAll(newTableGroups)) {
           isChanges=true;
         }
@@ -150,7 +152,7 @@ public class OrientDBComplianceDocumentSerialiser {
             ArrayList<String>  newRows=inputs[0];
             ArrayList<String> currentRows=new ArrayList<String>();
             for (int i=0; i < tg.getNoRows();i++) {
-                currentRows.add(mapToId(session,tg.getRow(i)));
+                currentRows.add(context.getId(tg.getRow(i)));
             }
             if (!newRows.containsAll(currentRows) || currentRows.containsAll(newRows)) {
               isChanges=true;
@@ -167,7 +169,7 @@ public class OrientDBComplianceDocumentSerialiser {
         ArrayList<String> newParagraphs=inputs[0];
         ArrayList<String> currentParagraphs=new ArrayList<String>();
         for (int i=0; i < p.getNoParagraphs();i++) {
-            currentParagraphs.add(mapToId(session,p.getParagraph(i)));
+            currentParagraphs.add(context.getId(p.getParagraph(i)));
         }
         if (!newParagraphs.containsAll(currentParagraphs) || currentParagraphs.containsAll(newParagraphs)) {
           isChanges=true;
@@ -177,7 +179,7 @@ public class OrientDBComplianceDocumentSerialiser {
         ArrayList<String> newInserts=inputs[0];
         ArrayList<String> currentInserts=new ArrayList<String>();
         for (int i=0; i < p.getNoInserts();i++) {
-            currentInserts.add(mapToId(session,p.getInsert(i)));
+            currentInserts.add(context.getId(p.getInsert(i)));
         }
         if (!newInserts.containsAll(currentInserts) || currentInserts.containsAll(newInserts)) {
           isChanges=true;
@@ -187,7 +189,7 @@ public class OrientDBComplianceDocumentSerialiser {
         ArrayList<String> newRules=inputs[0];
         ArrayList<String> currentRules=new ArrayList<String>();
         for (int i=0; i < p.getNoRules();i++) {
-            currentRules.add(mapToId(session,p.getRule(i)));
+            currentRules.add(context.getId(p.getRule(i)));
         }
         if (!newRules.containsAll(currentRules) || currentRules.containsAll(newRules)) {
           isChanges=true;
@@ -200,16 +202,24 @@ public class OrientDBComplianceDocumentSerialiser {
       
     }
 
-    public static void serialise(ODatabaseSession session, String dId, ComplianceDocument document) throws Exception {
+    //the caller owns the transaction, the version vertex is passed in as it may have been created in that same transaction
+    public static void serialise(ODatabaseSession session, OElement version, ComplianceDocument document) throws Exception {
+        serialise(session,version,document,null);
+    }
+
+    //figure images go into figureStore when there is one, a write that is rolled back can leave images there that nothing refers to
+    public static void serialise(ODatabaseSession session, OElement version, ComplianceDocument document,ComplianceDocumentFigureStore figureStore) throws Exception {
         LOGGER.trace("Serialising "+document);
+        OrientDBWriteContext context=new OrientDBWriteContext(session,document.getVersion(),figureStore);
         ArrayList<String> newSections=new ArrayList<String>();
-        for (int i=0; i < document.getNoSections();i++) newSections.add(serialiseSection(session, document.getVersion(), document.getSection(i)));
-        OResult vId=session.command("select from Version where versionName='"+document.getVersion()+"' and partOf="+dId).next();
-        updateDBRecord(session,vId.getProperty("@rid").toString(),"sections",newSections);
+        for (int i=0; i < document.getNoSections();i++) newSections.add(serialiseSection(context, document.getSection(i)));
+        updateDBRecord(version,"sections",newSections,context);
     }
     
-    private static String serialiseSection(ODatabaseSession session, String version, Section s) throws Exception  {
+    private static String serialiseSection(OrientDBWriteContext context,Section s) throws Exception  {
         LOGGER.info("Serialising "+s);
+        String unchanged=context.getUnchanged(s);
+        if (unchanged!=null) return unchanged;
         ArrayList<String> newSections=new ArrayList<String>();
         ArrayList<String> newParas=new ArrayList<String>();
         ArrayList<String> newSubItems=new ArrayList<String>();
@@ -217,33 +227,36 @@ public class OrientDBComplianceDocumentSerialiser {
         for (int i=0; i < s.getNoSubItems();i++) {
           ComplianceItem item=s.getSubItem(i);
           if (item instanceof Section) {
-            String nS=serialiseSection(session,version,(Section)item);
+            String nS=serialiseSection(context,(Section)item);
             newSections.add(nS);
             newSubItems.add(nS);
           }
           if (item instanceof Paragraph) {
-            String nP=serialiseParagraph(session,version,(Paragraph)item);
+            String nP=serialiseParagraph(context,(Paragraph)item);
             newParas.add(nP);
             newSubItems.add(nP);
           }
         }
         
   
-        if (detectChanges(session,s,version,newSections,newParas)) {
-          String id=createNew(session,"Section",version);
-          updateMetaData(session,id,s);
-          updateDBRecord(session,id,"sections",newSections);
-          updateDBRecord(session,id,"subItems",newSubItems);
-          updateDBRecord(session,id,"paragraphs",newParas);
+        if (detectChanges(context,s,newSections,newParas)) {
+          String id=createNew(context,"Section",s);
+          updateMetaData(context,id,s);
+          context.written(s,id);
+          updateDBRecord(context,id,"sections",newSections);
+          updateDBRecord(context,id,"subItems",newSubItems);
+          updateDBRecord(context,id,"paragraphs",newParas);
           return id;
         }
-        return mapToId(session,s);
+        return context.getId(s);
     }
 
 
 
-    private static String serialiseParagraph(ODatabaseSession session, String version,Paragraph p) throws Exception  {
+    private static String serialiseParagraph(OrientDBWriteContext context,Paragraph p) throws Exception  {
         LOGGER.info("Serialising "+p);
+        String unchanged=context.getUnchanged(p);
+        if (unchanged!=null) return unchanged;
         ArrayList<String> newRules=new ArrayList<String>();
         ArrayList<String> newParas=new ArrayList<String>();
         ArrayList<String> newInserts=new ArrayList<String>();
@@ -252,94 +265,117 @@ public class OrientDBComplianceDocumentSerialiser {
         for (int i=0; i < p.getNoSubItems();i++) {
           ComplianceItem item=p.getSubItem(i);
           if (item instanceof Paragraph) {
-            String nP=serialiseParagraph(session,version,(Paragraph)item);
+            String nP=serialiseParagraph(context,(Paragraph)item);
             newParas.add(nP);
             newSubItems.add(nP);
           }
           if (item instanceof Insert) {
-            String nI=serialiseInsert(session,version,(Insert)item);
+            String nI=serialiseInsert(context,(Insert)item);
             newInserts.add(nI);
             newSubItems.add(nI);
           }
         }
 
-        for (int i=0; i < p.getNoRules();i++) newRules.add(serialiseRule(session,version,p.getRule(i)));
+        for (int i=0; i < p.getNoRules();i++) newRules.add(serialiseRule(context,p.getRule(i)));
 
-        if (detectChanges(session,p,version,newParas,newInserts,newRules)) {
-          String id=createNew(session,"Paragraph",version);
-          updateMetaData(session,id,p);
-          updateDBRecord(session,id,"paragraphs",newParas);
-          updateDBRecord(session,id,"inserts",newInserts);
-          updateDBRecord(session,id,"rules",newRules);  
-          updateDBRecord(session,id,"subItems",newSubItems);   
+        if (detectChanges(context,p,newParas,newInserts,newRules)) {
+          String id=createNew(context,"Paragraph",p);
+          updateMetaData(context,id,p);
+          context.written(p,id);
+          //the body is not metadata so it is stored on its own, where the deserialiser reads it from
+          if (p.getBodyText()!=null) {
+            OElement paragraph=context.getElement(id);
+            paragraph.setProperty("body",p.getBodyText());
+            paragraph.save();
+          }
+          updateDBRecord(context,id,"paragraphs",newParas);
+          updateDBRecord(context,id,"inserts",newInserts);
+          updateDBRecord(context,id,"rules",newRules);  
+          updateDBRecord(context,id,"subItems",newSubItems);   
           return id;
         }
-        return mapToId(session,p);
+        return context.getId(p);
     }
 
-    private static String serialiseTableGroup(ODatabaseSession session, String version,TableGroup g,String name) throws Exception  {
+    private static String serialiseTableGroup(OrientDBWriteContext context,TableGroup g,String name) throws Exception  {
         LOGGER.info("Serialising "+g);
+        String unchanged=context.getUnchanged(g);
+        if (unchanged!=null) return unchanged;
         ArrayList<String> newRows=new ArrayList<String>();
-        for (int i=0; i < g.getNoRows();i++) newRows.add(serialiseRow(session,version,g.getRow(i)));
-        if (detectChanges(session,g,version,newRows)) {
-          String id=createNew(session,name,version);
-          updateMetaData(session,id,g);
-          updateDBRecord(session,id,"rows",newRows);
+        for (int i=0; i < g.getNoRows();i++) newRows.add(serialiseRow(context,g.getRow(i)));
+        if (detectChanges(context,g,newRows)) {
+          String id=createNew(context,name,g);
+          updateMetaData(context,id,g);
+          context.written(g,id);
+          updateDBRecord(context,id,"rows",newRows);
           return id;
         }
-      return mapToId(session,g);
+      return context.getId(g);
     }
     
-    private static String serialiseRow(ODatabaseSession session, String version,Row r) throws Exception  {
+    private static String serialiseRow(OrientDBWriteContext context,Row r) throws Exception  {
         LOGGER.info("Serialising "+r);
+        String unchanged=context.getUnchanged(r);
+        if (unchanged!=null) return unchanged;
         ArrayList<String> newCells=new ArrayList<String>();
-        for (int z=0; z< r.getNoCells();z++) newCells.add(serialiseCell(session,version,r.getCell(z)));
-        if (detectChanges(session,r,version,newCells)) {
-          String id=createNew(session,"Row",version);
-          updateMetaData(session,id,r);
-          updateDBRecord(session,id,"cells",newCells);
+        for (int z=0; z< r.getNoCells();z++) newCells.add(serialiseCell(context,r.getCell(z)));
+        if (detectChanges(context,r,newCells)) {
+          String id=createNew(context,"Row",r);
+          updateMetaData(context,id,r);
+          context.written(r,id);
+          updateDBRecord(context,id,"cells",newCells);
           return id;
         }
-        return mapToId(session,r);
+        return context.getId(r);
     }
     
-    private static String serialiseCell(ODatabaseSession session, String version,Cell c) throws Exception  {
+    private static String serialiseCell(OrientDBWriteContext context,Cell c) throws Exception  {
         LOGGER.info("Serialising "+c);
-        if (detectChanges(session,c,version)) {
+        String unchanged=context.getUnchanged(c);
+        if (unchanged!=null) return unchanged;
+        if (detectChanges(context,c)) {
           String type;
           if (c instanceof DataCell) type="DataCell";
           else type="TitleCell";
           
-          String id=createNew(session,type,version);
-          updateMetaData(session,id,c);
+          String id=createNew(context,type,c);
+          updateMetaData(context,id,c);
+          context.written(c,id);
           return id;
         }
-        return mapToId(session,c);
+        return context.getId(c);
     }
 
-    private static String serialiseInsert(ODatabaseSession session, String version,Insert i) throws Exception  {
+    private static String serialiseInsert(OrientDBWriteContext context,Insert i) throws Exception  {
         LOGGER.info("Serialising "+i);
+        String unchanged=context.getUnchanged(i);
+        if (unchanged!=null) return unchanged;
         if (i instanceof Table) {
 
             Table t=(Table)i;
             String header=null,footer=null,body=null;
             ArrayList<String> newGroups=new ArrayList<String>();
             if (t.getHeader()!=null) {
-              header=serialiseTableGroup(session,version,t.getHeader(),"TableHeader");
+              header=serialiseTableGroup(context,t.getHeader(),"TableHeader");
               newGroups.add(header);
             }
             if (t.getBody()!=null) {
-              body=serialiseTableGroup(session,version,t.getBody(),"TableBody");
+              body=serialiseTableGroup(context,t.getBody(),"TableBody");
               newGroups.add(body);
             }
             if (t.getFooter()!=null) {
-              footer=serialiseTableGroup(session,version,t.getFooter(),"TableFooter");
+              footer=serialiseTableGroup(context,t.getFooter(),"TableFooter");
               newGroups.add(footer);
             }
-            if (detectChanges(session,t,version,newGroups)) {
-              String id=createNew(session,"Table",version);
-              updateMetaData(session,id,t);
-              session.command("update "+id+" set header="+header+",body="+body+", footer="+footer);
+            if (detectChanges(context,t,newGroups)) {
+              String id=createNew(context,"Table",t);
+              updateMetaData(context,id,t);
+              context.written(t,id);
+              OElement table=context.getElement(id);
+              table.setProperty("header",context.getLink(header));
+              table.setProperty("body",context.getLink(body));
+              table.setProperty("footer",context.getLink(footer));
+              table.save();
               return id;
             }
         } else if (i instanceof Figure) {
@@ -347,34 +383,47 @@ public class OrientDBComplianceDocumentSerialiser {
           Figure f=(Figure)i;
           ArrayList<String> imageData=new ArrayList<String>();
           imageData.add(f.getImageDataString());
-          if (detectChanges(session,f,version,imageData)) {
-            String id=createNew(session,"Figure",version);
-            updateMetaData(session,id,f);
-            session.command("update "+id+" set imageData='"+((Figure)i).getImageDataString()+"'");
+          if (detectChanges(context,f,imageData)) {
+            String id=createNew(context,"Figure",f);
+            updateMetaData(context,id,f);
+            context.written(f,id);
+            OElement figure=context.getElement(id);
+            String hash=context.storeFigure(f.getImageDataString());
+            if (hash!=null) {
+              figure.setProperty("imageHash",hash);
+              figure.setProperty("imageSize",context.getFigureSize(hash));
+            } else {
+              figure.setProperty("imageData",f.getImageDataString());
+            }
+            figure.save();
             return id;
           }
         }
-        return mapToId(session,i);
+        return context.getId(i);
     }
 
-    private static String serialiseRule(ODatabaseSession session, String version,Rule r) throws Exception  {
+    private static String serialiseRule(OrientDBWriteContext context,Rule r) throws Exception  {
         LOGGER.info("Serialising "+r);
-        if (detectChanges(session,r,version)) {
-          String id=createNew(session,"Rule",version);
-          updateMetaData(session,id,r);
+        String unchanged=context.getUnchanged(r);
+        if (unchanged!=null) return unchanged;
+        if (detectChanges(context,r)) {
+          String id=createNew(context,"Rule",r);
+          updateMetaData(context,id,r);
+          context.written(r,id);
           return id;
         }
-        return mapToId(session,r);
+        return context.getId(r);
     }
 
     
-    public static void updateMetaData(ODatabaseSession session, String id,ComplianceItem item) {
+    private static void updateMetaData(OrientDBWriteContext context, String id,ComplianceItem item) {
+      OElement element=context.getElement(id);
+      updateMetaData(element,item);
+      element.save();
+    }
+    
+    public static void updateMetaData(OElement element,ComplianceItem item) {
       OrientDBMappings mappings=new OrientDBMappings();
-      StringBuffer str=new StringBuffer();
-      str.append("update "+id+" set ");
-      boolean hasSomeMetadata=false;
-      HashMap<String,Object> params=new HashMap<String,Object>();
-      boolean first=true;
       for(String mDName: item.getMetaDataList()) {
           String mdNewName=null;
           boolean isArray=false;
@@ -389,9 +438,6 @@ public class OrientDBComplianceDocumentSerialiser {
             LOGGER.error("Metadata Not Found! - "+mDName);
             continue;
           }
-          if (first) first=false; else str.append(",");
-          str.append(mdNewName).append("=:"+mdNewName);
-          hasSomeMetadata=true;
           if (isArray){
             ArrayList<String> data;
             if (item.isListMetadata(mDName)) {
@@ -400,11 +446,10 @@ public class OrientDBComplianceDocumentSerialiser {
               data=new ArrayList<String>();
               data.add(item.getMetaDataString(mDName));
             }
-            params.put(mdNewName,data);
+            element.setProperty(mdNewName,data);
           }else {
-            params.put(mdNewName,item.getMetaDataString(mDName));
+            element.setProperty(mdNewName,item.getMetaDataString(mDName));
           }
       }
-      if (hasSomeMetadata) session.command(str.toString(),params);
     }
 }
@@ -0,0 +1,103 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import java.nio.charset.StandardCharsets;
+import org.dcom.compliancedocumentservice.ComplianceDocumentHashes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import org.dcom.core.compliancedocument.*;
+
+/**
+*This computes the content hash stored on each node vertex. A node's hash covers its type, its metadata (apart from its identifier) and the hashes of its children in order, so two nodes with the same hash hold the same subtree.
+*Hashes are worked out once per item and remembered, so hashing a whole document is a single bottom-up pass.
+*
+*/
+public class OrientDBContentHash {
+
+	private IdentityHashMap<ComplianceItem,String> hashes=new IdentityHashMap<ComplianceItem,String>();
+	private OrientDBMappings mappings=new OrientDBMappings();
+
+	public String hash(ComplianceItem item) {
+		if (item==null) return "";
+		String hash=hashes.get(item);
+		if (hash!=null) return hash;
+		StringBuffer str=new StringBuffer();
+		str.append(item.getClass().getSimpleName());
+		appendMetaData(str,item);
+		if (item instanceof Paragraph) {
+			Paragraph p=(Paragraph)item;
+			append(str,"body",p.getBodyText());
+			for (int i=0; i < p.getNoRules();i++) append(str,"rule",hash(p.getRule(i)));
+		}
+		if (item instanceof Figure) append(str,"imageData",((Figure)item).getImageDataString());
+		if (item instanceof Table) {
+			Table t=(Table)item;
+			append(str,"header",hash(t.getHeader()));
+			append(str,"body",hash(t.getBody()));
+			append(str,"footer",hash(t.getFooter()));
+		}
+		if (item instanceof TableGroup) {
+			TableGroup g=(TableGroup)item;
+			for (int i=0; i < g.getNoRows();i++) append(str,"row",hash(g.getRow(i)));
+		}
+		if (item instanceof Row) {
+			Row r=(Row)item;
+			for (int i=0; i < r.getNoCells();i++) append(str,"cell",hash(r.getCell(i)));
+		}
+		for (int i=0; i < item.getNoSubItems();i++) append(str,"subItem",hash(item.getSubItem(i)));
+		hash=digest(str.toString());
+		hashes.put(item,hash);
+		return hash;
+	}
+
+	//only the metadata the serialiser actually stores counts, in a fixed order
+	private void appendMetaData(StringBuffer str,ComplianceItem item) {
+		ArrayList<String> names=new ArrayList<String>(item.getMetaDataList());
+		Collections.sort(names);
+		for (String mDName: names) {
+			if (mDName.equals("dcterms:identifier")) continue;
+			boolean mapped=false;
+			for (int i=0; i < mappings.getNoMappings();i++) {
+				if (mappings.getD(i).equals(mDName)) mapped=true;
+			}
+			if (!mapped) continue;
+			if (item.isListMetadata(mDName)) {
+				for (String value: item.getMetaDataList(mDName)) append(str,mDName,value);
+			} else {
+				append(str,mDName,item.getMetaDataString(mDName));
+			}
+		}
+	}
+
+	//values are length prefixed so different splits of the same characters never collide
+	private static void append(StringBuffer str,String name,String value) {
+		str.append('|').append(name).append('=');
+		if (value==null) {
+			str.append("-1:");
+			return;
+		}
+		str.append(value.length()).append(':').append(value);
+	}
+
+	private static String digest(String data) {
+		return ComplianceDocumentHashes.sha256(data.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,170 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.core.compliancedocument.*;
+import org.dcom.compliancedocumentservice.ComplianceDocumentDiff;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This diffs two stored versions of a document using the fact that unchanged subtrees are the same vertices in both. The current version is loaded as normal, but of the previous version only the vertices it does not share with the current version are read.
+*Every shared vertex is stood in for by the item already loaded for the current version, which the diff recognises as identical and does not look inside. The items that are read are numbered and given access locations just as loading the whole previous version would.
+*
+*/
+public class OrientDBDocumentDiff {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger( OrientDBDocumentDiff.class );
+
+  private OrientDBDocumentRecords records;
+  private HashMap<String,ComplianceItem> shared;
+  private ComplianceDocument previous;
+  private int loaded=0;
+
+  private OrientDBDocumentDiff(OrientDBDocumentRecords records,HashMap<String,ComplianceItem> shared,ComplianceDocument previous) {
+    this.records=records;
+    this.shared=shared;
+    this.previous=previous;
+  }
+
+  public static ComplianceDocument diff(String url,ODatabaseSession session,String docId,String version,String previousVersion,boolean batch) {
+    OrientDBDocumentRecords currentRecords=new OrientDBDocumentRecords(session);
+    ComplianceDocument current=OrientDBComplianceDocumentDeserialiser.parseComplianceDocument(url,currentRecords,docId,version,batch);
+    if (current==null) return null;
+    //a version that does not exist is diffed as an empty document so everything shows as inserted
+    ComplianceDocument previous=new ComplianceDocument();
+    OResultSet rs=session.command("select from Version where versionName=? and partOf="+docId,previousVersion);
+    if (!rs.hasNext()) return ComplianceDocumentDiff.diff(current,previous);
+    OResult r=rs.next();
+    rs.close();
+    //deleted items are numbered and located as they were in the previous version
+    String previousUrl=url.substring(0,url.lastIndexOf('/')+1)+previousVersion;
+    previous.setMetaData("ckterms:accessLocation",previousUrl);
+    OResultSet rs2=session.command("select from "+docId);
+    if (rs2.hasNext()) OrientDBComplianceDocumentDeserialiser.parseMetaData(previous,rs2.next());
+    rs2.close();
+    OrientDBComplianceDocumentDeserialiser.parseVersionMetaData(previous,session,r,previousVersion);
+    OrientDBDocumentDiff diff=new OrientDBDocumentDiff(new OrientDBDocumentRecords(session),currentRecords.getItems(),previous);
+    int number=diff.getStartNumber("dcom:startSectionNumber");
+    for (String id: diff.getIds(r,"sections")) {
+      Section section=(Section)diff.buildSection(id,previous,previousUrl,number,diff.getStartNumber("dcom:startParagraphNumber"));
+      if (OrientDBComplianceDocumentDeserialiser.isGlobal(section)) number++;
+      previous.addSection(section);
+    }
+    LOGGER.info("Diffing "+version+" against "+previousVersion+" read "+diff.loaded+" previous vertices");
+    return ComplianceDocumentDiff.diff(current,previous);
+  }
+
+  private int getStartNumber(String field) {
+    if (previous.hasMetaData(field)) return Integer.parseInt(previous.getMetaDataString(field));
+    return 1;
+  }
+
+  private ArrayList<String> getIds(OResult r,String field) {
+    ArrayList<String> ids=new ArrayList<String>();
+    if (!r.hasProperty(field) || r.getProperty(field)==null) return ids;
+    List<OIdentifiable> links=(List<OIdentifiable>)r.getProperty(field);
+    for (OIdentifiable link: links) ids.add(link.getIdentity().toString());
+    return ids;
+  }
+
+  //whether the item with this RID is globally numbered, without building it
+  private boolean isGlobal(String id) {
+    ComplianceItem standIn=shared.get(id);
+    if (standIn!=null) return OrientDBComplianceDocumentDeserialiser.isGlobal(standIn);
+    Section probe=new Section(previous);
+    OrientDBComplianceDocumentDeserialiser.parseMetaData(probe,records.get(id));
+    return OrientDBComplianceDocumentDeserialiser.isGlobal(probe);
+  }
+
+  //numbers and access locations follow OrientDBComplianceDocumentDeserialiser.parseSection
+  private ComplianceItem buildSection(String id,ComplianceItem parent,String url,Integer myNumber,int paraNumberContinuation) {
+    ComplianceItem standIn=shared.get(id);
+    if (standIn!=null) return standIn;
+    loaded++;
+    OResult r=records.get(id);
+    Section section=new Section(parent);
+    if (myNumber!=null) section.setNumber(myNumber);
+    OrientDBComplianceDocumentDeserialiser.parseMetaData(section,r);
+    String location=OrientDBComplianceDocumentDeserialiser.accessLocation(url,section,myNumber);
+    if (location!=null) {
+      section.setMetaData("ckterms:accessLocation",location);
+      url=location;
+    }
+    int sectionNumber=getStartNumber("dcom:startSectionNumber");
+    int paraNumber=paraNumberContinuation;
+    ArrayList<String> sections=getIds(r,"sections");
+    for (String subId: getIds(r,"subItems")) {
+      if (sections.contains(subId)) {
+        Section s;
+        if (isGlobal(subId)) {
+          sectionNumber++;
+          s=(Section)buildSection(subId,section,url,sectionNumber,getStartNumber("dcom:startParagraphNumber"));
+        } else {
+          s=(Section)buildSection(subId,section,url,null,paraNumber);
+          paraNumber+=OrientDBComplianceDocumentDeserialiser.continuedParagraphs(s);
+        }
+        section.addSection(s);
+      } else {
+        Paragraph p=(Paragraph)buildParagraph(subId,section,url,paraNumber);
+        if (OrientDBComplianceDocumentDeserialiser.isGlobal(p)) paraNumber++;
+        section.addParagraph(p);
+      }
+    }
+    section.setHighestParaNumber(paraNumber);
+    return section;
+  }
+
+  //numbers and access locations follow OrientDBComplianceDocumentDeserialiser.parseParagraph
+  private ComplianceItem buildParagraph(String id,ComplianceItem parent,String url,Integer myNumber) {
+    ComplianceItem standIn=shared.get(id);
+    if (standIn!=null) return standIn;
+    loaded++;
+    OResult r=records.get(id);
+    Paragraph paragraph=new Paragraph(parent);
+    paragraph.setNumber(myNumber);
+    OrientDBComplianceDocumentDeserialiser.parseMetaData(paragraph,r);
+    url=OrientDBComplianceDocumentDeserialiser.accessLocation(url,paragraph,myNumber);
+    if (url!=null) paragraph.setMetaData("ckterms:accessLocation",url);
+    if (r.hasProperty("body")) paragraph.setBodyText(r.getProperty("body").toString());
+    int number=1;
+    for (String subId: getIds(r,"paragraphs")) {
+      Paragraph p=(Paragraph)buildParagraph(subId,paragraph,url,number);
+      if (OrientDBComplianceDocumentDeserialiser.isGlobal(p)) number++;
+      paragraph.addParagraph(p);
+    }
+    for (String subId: getIds(r,"rules")) paragraph.addRule(OrientDBComplianceDocumentDeserialiser.parseRule(records,subId,paragraph));
+    for (String subId: getIds(r,"inserts")) {
+      ComplianceItem insert=shared.get(subId);
+      if (insert==null) {
+        loaded++;
+        insert=OrientDBComplianceDocumentDeserialiser.parseInsert(records,subId,paragraph);
+      }
+      paragraph.addInsert((Insert)insert);
+    }
+    return paragraph;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import org.dcom.core.compliancedocument.ComplianceItem;
+import org.dcom.compliancedocumentservice.ComplianceDocumentLoadOptions;
+
+/**
+*This supplies the records that make up a stored compliance document to the deserialiser. Records are either fetched one at a time as they are asked for or pulled in advance for a whole subtree with a single traverse.
+*The load options decide how much is read, a structure only load never follows the links to inserts and leaves the paragraph bodies out of the records it reads.
+*
+*/
+public class OrientDBDocumentRecords {
+
+	// all the link fields that make up the tree below a version
+	public static final String TREE_FIELDS="sections, subItems, paragraphs, inserts, rules, header, body, footer, rows, cells";
+	// the link fields that make up the outline of the document, without the inserts below it
+	public static final String STRUCTURE_FIELDS="sections, subItems, paragraphs, rules";
+	// the tree down to the table groups, leaving out their rows and cells
+	public static final String TABLE_GROUP_FIELDS="sections, subItems, paragraphs, inserts, rules, header, body, footer";
+	// the rows and cells below a table group
+	public static final String ROW_FIELDS="rows, cells";
+
+	private ODatabaseSession session;
+	private HashMap<String,OResult> records;
+	private IdentityHashMap<ComplianceItem,String> itemIds=new IdentityHashMap<ComplianceItem,String>();
+	private ComplianceDocumentLoadOptions options;
+
+	public OrientDBDocumentRecords(ODatabaseSession session) {
+		this(session,ComplianceDocumentLoadOptions.FULL);
+	}
+
+	public OrientDBDocumentRecords(ODatabaseSession session,ComplianceDocumentLoadOptions options) {
+		this.session=session;
+		this.options=options;
+		records=new HashMap<String,OResult>();
+	}
+
+	public ComplianceDocumentLoadOptions getOptions() {
+		return options;
+	}
+
+	// what is read of each record when bodies are not wanted, they are dropped in the database rather than after they have been sent
+	// the parser only takes an exclusion inside a nested projection, so the record comes back under one property
+	private String projection() {
+		return "@this:{@rid, @class, *, !body} as record";
+	}
+
+	private OResult read(OResult r) {
+		if (options.loadBodies()) return r;
+		return r.getProperty("record");
+	}
+
+	public ODatabaseSession getSession() {
+		return session;
+	}
+
+	public static String getId(OResult r) {
+		if (r.getIdentity().isPresent()) return r.getIdentity().get().toString();
+		return r.getProperty("@rid").toString();
+	}
+
+	public void prefetch(String rootId) {
+		prefetch(rootId,options.loadInserts() ? TREE_FIELDS : STRUCTURE_FIELDS);
+	}
+
+	public void prefetch(String rootId,String fields) {
+		OResultSet rs;
+		if (options.loadBodies()) rs=session.command("traverse "+fields+" from "+rootId);
+		else rs=session.command("select "+projection()+" from (traverse "+fields+" from "+rootId+")");
+		while (rs.hasNext()) {
+			OResult r=read(rs.next());
+			records.put(getId(r),r);
+		}
+		rs.close();
+	}
+
+	//reads a set of records by id with one query
+	public void fetch(List<String> ids) {
+		if (ids.isEmpty()) return;
+		OResultSet rs;
+		if (options.loadBodies()) rs=session.command("select from ["+String.join(", ",ids)+"]");
+		else rs=session.command("select "+projection()+" from ["+String.join(", ",ids)+"]");
+		while (rs.hasNext()) {
+			OResult r=read(rs.next());
+			records.put(getId(r),r);
+		}
+		rs.close();
+	}
+
+	//takes in the records and item ids read through other, used when parts of a document are read on other sessions
+	public void merge(OrientDBDocumentRecords other) {
+		records.putAll(other.records);
+		itemIds.putAll(other.itemIds);
+	}
+
+	public OResult get(String id) {
+		OResult r=records.get(id);
+		if (r!=null) return r;
+		// not prefetched so go to the database for it
+		if (options.loadBodies()) r=session.command("select from "+id).next();
+		else r=read(session.command("select "+projection()+" from "+id).next());
+		records.put(id,r);
+		return r;
+	}
+
+	public void parsed(ComplianceItem item,String id) {
+		itemIds.put(item,id);
+	}
+
+	//the RID of the record an item was read from
+	public String getId(ComplianceItem item) {
+		return itemIds.get(item);
+	}
+
+	//the items read so far by the RID of their record
+	public HashMap<String,ComplianceItem> getItems() {
+		HashMap<String,ComplianceItem> items=new HashMap<String,ComplianceItem>();
+		for (ComplianceItem item: itemIds.keySet()) items.put(itemIds.get(item),item);
+		return items;
+	}
+
+	public int size() {
+		return records.size();
+	}
+
+	//the ids of the table groups read so far that are still to have their rows read, with how many rows each has
+	public HashMap<String,Integer> getUnreadTableGroups() {
+		HashMap<String,Integer> groups=new HashMap<String,Integer>();
+		for (OResult r: records.values()) {
+			//only table groups have rows
+			List<OIdentifiable> rows=r.getProperty("rows");
+			if (rows==null || rows.isEmpty() || records.containsKey(rows.get(0).getIdentity().toString())) continue;
+			groups.put(getId(r),rows.size());
+		}
+		return groups;
+	}
+}
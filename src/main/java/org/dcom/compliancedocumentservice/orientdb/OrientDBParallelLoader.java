@@ -0,0 +1,178 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcom.compliancedocumentservice.ComplianceDocumentDatabaseUnavailableException;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.Section;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This loads the top level sections of a document at the same time, each on its own thread with its own pooled session. A top level section's numbering only depends on which of the sections before it are globally numbered, so the numbers are worked out from the section records first and the result is the same as loading them one after another.
+*The rows and cells of large table groups are read the same way, each group on a session of its own while the rest of its section is read. Work that cannot get a session of its own in time, or that the threads have not got to by the time it is needed, is done on the caller's session.
+*
+*/
+public class OrientDBParallelLoader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( OrientDBParallelLoader.class );
+
+	// table groups with at least this many rows have them read on a session of their own
+	public static final int LARGE_TABLE_ROWS=200;
+
+	private OrientDBSessionPool sessionPool;
+	private ExecutorService executor;
+	private int largeTableRows;
+
+	public OrientDBParallelLoader(OrientDBSessionPool sessionPool,int threads) {
+		this(sessionPool,threads,LARGE_TABLE_ROWS);
+	}
+
+	OrientDBParallelLoader(OrientDBSessionPool sessionPool,int threads,int largeTableRows) {
+		this.sessionPool=sessionPool;
+		this.largeTableRows=largeTableRows;
+		final AtomicInteger count=new AtomicInteger();
+		executor=Executors.newFixedThreadPool(threads,runnable -> {
+			Thread thread=new Thread(runnable,"SectionLoader-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	//loads under way finish, anything asked of the loader afterwards is done on the caller's session
+	public void close() {
+		executor.shutdown();
+	}
+
+	//runs work on a pooled session of its own, giving null if there is none to be had
+	private Callable<OrientDBDocumentRecords> onOwnSession(final OrientDBDocumentRecords records,final Loader loader) {
+		return () -> {
+			ODatabaseSession session;
+			try {
+				session=sessionPool.acquire();
+			} catch (ComplianceDocumentDatabaseUnavailableException e) {
+				return null;
+			}
+			try {
+				OrientDBDocumentRecords ownRecords=new OrientDBDocumentRecords(session,records.getOptions());
+				loader.load(ownRecords);
+				return ownRecords;
+			} finally {
+				sessionPool.release(session);
+			}
+		};
+	}
+
+	private interface Loader {
+		void load(OrientDBDocumentRecords records);
+	}
+
+	private FutureTask<OrientDBDocumentRecords> submit(Callable<OrientDBDocumentRecords> work) {
+		FutureTask<OrientDBDocumentRecords> task=new FutureTask<OrientDBDocumentRecords>(work);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			//closed, the caller runs it when it needs it
+		}
+		return task;
+	}
+
+	//the result of a task, run on the calling thread if no thread has started it yet so a section waiting on its tables never waits on the threads it is holding
+	private OrientDBDocumentRecords await(FutureTask<OrientDBDocumentRecords> task,String id,OrientDBDocumentRecords records) throws InterruptedException {
+		try {
+			task.run();
+			return task.get();
+		} catch (ExecutionException e) {
+			LOGGER.warn("Loading "+id+" in parallel failed:"+e.getCause());
+			return null;
+		} finally {
+			//a session opened for the task on this thread leaves itself as the thread's current one
+			records.getSession().activateOnCurrentThread();
+		}
+	}
+
+	//reads the tree below rootId into records as OrientDBDocumentRecords.prefetch does, with the rows of large table groups read on sessions of their own
+	public void prefetch(OrientDBDocumentRecords records,String rootId) throws InterruptedException {
+		if (!records.getOptions().loadInserts()) {
+			records.prefetch(rootId);
+			return;
+		}
+		records.prefetch(rootId,OrientDBDocumentRecords.TABLE_GROUP_FIELDS);
+		HashMap<String,Integer> groups=records.getUnreadTableGroups();
+		if (groups.isEmpty()) return;
+		ArrayList<String> small=new ArrayList<String>();
+		HashMap<String,FutureTask<OrientDBDocumentRecords>> large=new HashMap<String,FutureTask<OrientDBDocumentRecords>>();
+		for (final String id: groups.keySet()) {
+			if (groups.get(id) < largeTableRows) small.add(id);
+			else large.put(id,submit(onOwnSession(records,groupRecords -> groupRecords.prefetch(id,OrientDBDocumentRecords.ROW_FIELDS))));
+		}
+		if (!small.isEmpty()) records.prefetch("["+String.join(", ",small)+"]",OrientDBDocumentRecords.ROW_FIELDS);
+		for (String id: large.keySet()) {
+			OrientDBDocumentRecords groupRecords=await(large.get(id),id,records);
+			if (groupRecords==null) records.prefetch(id,OrientDBDocumentRecords.ROW_FIELDS);
+			else records.merge(groupRecords);
+		}
+		LOGGER.debug("Read "+large.size()+" large table groups in parallel below "+rootId);
+	}
+
+	//the item ids of every section loaded are added to records, as if they had been loaded through it
+	public ArrayList<Section> parseSections(final ComplianceDocument document,final String url,ArrayList<String> ids,ArrayList<Integer> numbers,final int startParaNumber,OrientDBDocumentRecords records,boolean batch) throws InterruptedException {
+		long start=System.currentTimeMillis();
+		ArrayList<FutureTask<OrientDBDocumentRecords>> futures=new ArrayList<FutureTask<OrientDBDocumentRecords>>();
+		final Section[] sections=new Section[ids.size()];
+		for (int i=0; i < ids.size();i++) {
+			final int index=i;
+			final String id=ids.get(i);
+			final Integer number=numbers.get(i);
+			futures.add(submit(onOwnSession(records,sectionRecords -> {
+				try {
+					if (batch) prefetch(sectionRecords,id);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				sections[index]=OrientDBComplianceDocumentDeserialiser.parseSection(document,url,number,startParaNumber,sectionRecords,id,document);
+			})));
+		}
+		ArrayList<Section> result=new ArrayList<Section>();
+		int fallback=0;
+		for (int i=0; i < futures.size();i++) {
+			OrientDBDocumentRecords sectionRecords=await(futures.get(i),"section "+ids.get(i),records);
+			if (sectionRecords==null) {
+				fallback++;
+				if (batch) prefetch(records,ids.get(i));
+				sections[i]=OrientDBComplianceDocumentDeserialiser.parseSection(document,url,numbers.get(i),startParaNumber,records,ids.get(i),document);
+			} else {
+				records.merge(sectionRecords);
+			}
+			result.add(sections[i]);
+		}
+		LOGGER.info("Loaded "+ids.size()+" sections in parallel in "+(System.currentTimeMillis()-start)+"ms, "+fallback+" on the caller's session");
+		return result;
+	}
+}
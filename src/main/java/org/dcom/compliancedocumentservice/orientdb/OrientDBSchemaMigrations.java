@@ -0,0 +1,150 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This brings the schema of the compliance document database up to date. It is run on every startup, each migration is applied once and recorded in the SchemaMigration class so only new migrations run.
+*
+*/
+public class OrientDBSchemaMigrations {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( OrientDBSchemaMigrations.class );
+
+	private static final String[] MIGRATIONS={"Create vertex classes","Create lookup indexes","Backfill latestVersion"};
+
+	public static void migrate(ODatabaseSession session) {
+		OSchema schema=session.getMetadata().getSchema();
+		OClass migrations=schema.getClass("SchemaMigration");
+		if (migrations==null) {
+			migrations=schema.createClass("SchemaMigration");
+			migrations.createProperty("number",OType.INTEGER);
+			migrations.createProperty("name",OType.STRING);
+			migrations.createProperty("appliedOn",OType.DATETIME);
+		}
+		int applied=0;
+		OResultSet rs=session.command("select max(number) as number from SchemaMigration");
+		if (rs.hasNext()) {
+			OResult r=rs.next();
+			if (r.getProperty("number")!=null) applied=((Number)r.getProperty("number")).intValue();
+		}
+		rs.close();
+		for (int i=applied+1; i <= MIGRATIONS.length;i++) {
+			LOGGER.info("Applying Schema Migration "+i+":"+MIGRATIONS[i-1]);
+			apply(session,i);
+			session.command("insert into SchemaMigration set number=?, name=?, appliedOn=sysdate()",i,MIGRATIONS[i-1]).close();
+		}
+	}
+
+	private static void apply(ODatabaseSession session,int migration) {
+		switch (migration) {
+			case 1:
+				createClasses(session);
+				break;
+			case 2:
+				createIndexes(session);
+				break;
+			case 3:
+				backfillLatestVersions(session);
+				break;
+		}
+	}
+
+	private static OClass createClass(OSchema schema,String name,String superClass) {
+		OClass c=schema.getClass(name);
+		if (c==null) c=schema.createClass(name,schema.getClass(superClass));
+		return c;
+	}
+
+	private static void createProperty(OClass c,String name,OType type) {
+		if (c.getProperty(name)==null) c.createProperty(name,type);
+	}
+
+	private static void createProperty(OClass c,String name,OType type,OType linkedType) {
+		if (c.getProperty(name)==null) c.createProperty(name,type,linkedType);
+	}
+
+	private static void createIndex(OClass c,String name,String... fields) {
+		if (c.getClassIndex(name)==null) c.createIndex(name,OClass.INDEX_TYPE.NOTUNIQUE,fields);
+	}
+
+	// databases created before migrations existed already have most of these, hence the existence checks
+	private static void createClasses(ODatabaseSession session) {
+		OSchema schema=session.getMetadata().getSchema();
+		createClass(schema,"ComplianceDocument","V");
+		createClass(schema,"Version","V");
+		createClass(schema,"Section","V");
+		createClass(schema,"Paragraph","V");
+		createClass(schema,"Figure","V");
+		createClass(schema,"Table","V");
+		createClass(schema,"Rule","V");
+		createClass(schema,"TableGroup","V");
+		createClass(schema,"Row","V");
+		createClass(schema,"Cell","V");
+		createClass(schema,"TitleCell","Cell");
+		createClass(schema,"DataCell","Cell");
+		createClass(schema,"TableFooter","TableGroup");
+		createClass(schema,"TableHeader","TableGroup");
+		createClass(schema,"TableBody","TableGroup");
+	}
+
+	private static void createIndexes(ODatabaseSession session) {
+		OSchema schema=session.getMetadata().getSchema();
+		// every node is looked up by identifier when a document is written
+		OClass v=schema.getClass("V");
+		createProperty(v,"identifier",OType.STRING);
+		createIndex(v,"V.identifier","identifier");
+
+		OClass version=schema.getClass("Version");
+		createProperty(version,"partOf",OType.LINK);
+		createProperty(version,"versionName",OType.STRING);
+		createProperty(version,"versionDate",OType.DATETIME);
+		createIndex(version,"Version.partOf_versionName","partOf","versionName");
+		createIndex(version,"Version.partOf_versionDate","partOf","versionDate");
+
+		OClass document=schema.getClass("ComplianceDocument");
+		createProperty(document,"type",OType.STRING);
+		createProperty(document,"shortName",OType.STRING);
+		createProperty(document,"spatialCoverage",OType.EMBEDDEDLIST,OType.STRING);
+		createIndex(document,"ComplianceDocument.type_shortName_spatialCoverage","type","shortName","spatialCoverage");
+	}
+
+	// documents written before the latestVersion link existed get it set from their newest version
+	private static void backfillLatestVersions(ODatabaseSession session) {
+		OResultSet rs=session.command("select @rid as rid from ComplianceDocument where latestVersion is null");
+		while (rs.hasNext()) {
+			String dId=rs.next().getProperty("rid").toString();
+			OResultSet rs2=session.command("select @rid as rid from Version where partOf="+dId+" order by versionDate DESC, @rid DESC limit 1");
+			if (rs2.hasNext()) {
+				session.command("update "+dId+" set latestVersion="+rs2.next().getProperty("rid").toString());
+				LOGGER.info("Set latestVersion on "+dId);
+			}
+			rs2.close();
+		}
+		rs.close();
+	}
+}
@@ -0,0 +1,140 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import com.orientechnologies.orient.core.db.OrientDB;
+import com.orientechnologies.orient.core.db.OrientDBConfig;
+import com.orientechnologies.orient.core.db.OrientDBConfigBuilder;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.db.ODatabasePool;
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.exception.OAcquireTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.dcom.compliancedocumentservice.ComplianceDocumentDatabaseUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+*This wraps the OrientDB session pool, which is already thread safe, and keeps count of how it is being used. Sessions taken with acquire must be handed back with release.
+*If no session becomes free within the acquire timeout a ComplianceDocumentDatabaseUnavailableException is thrown rather than returning null.
+*
+*/
+public class OrientDBSessionPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( OrientDBSessionPool.class );
+
+	//upper bounds, in milliseconds, of the acquire latency histogram buckets. the last bucket counts everything slower
+	private static final long[] LATENCY_BUCKETS={1,2,5,10,25,50,100,250,500,1000,2500,5000};
+
+	private ODatabasePool pool;
+	private int maxSessions;
+	private AtomicInteger active=new AtomicInteger();
+	private AtomicInteger waiting=new AtomicInteger();
+	private AtomicLong acquired=new AtomicLong();
+	private AtomicLong timeouts=new AtomicLong();
+	private AtomicLongArray latencies=new AtomicLongArray(LATENCY_BUCKETS.length+1);
+
+	public OrientDBSessionPool(OrientDB db,String database,String username,String password,int minSessions,int maxSessions,int acquireTimeout,int idleTimeout) {
+		this.maxSessions=maxSessions;
+		OrientDBConfigBuilder poolCfg = OrientDBConfig.builder();
+		poolCfg.addConfig(OGlobalConfiguration.CLIENT_CONNECT_POOL_WAIT_TIMEOUT,5000);
+		poolCfg.addConfig(OGlobalConfiguration.CLIENT_DB_RELEASE_WAIT_TIMEOUT,5000);
+		poolCfg.addConfig(OGlobalConfiguration.STORAGE_LOCK_TIMEOUT,5000);
+		poolCfg.addConfig(OGlobalConfiguration.DB_POOL_MIN,minSessions);
+		poolCfg.addConfig(OGlobalConfiguration.DB_POOL_MAX,maxSessions);
+		poolCfg.addConfig(OGlobalConfiguration.DB_POOL_IDLE_TIMEOUT,idleTimeout);
+		poolCfg.addConfig(OGlobalConfiguration.DB_POOL_IDLE_CHECK_DELAY,1000);
+		poolCfg.addConfig(OGlobalConfiguration.DB_POOL_ACQUIRE_TIMEOUT,acquireTimeout);
+		pool=new ODatabasePool(db,database,username,password,poolCfg.build());
+		LOGGER.info("Session Pool:"+minSessions+"-"+maxSessions+" sessions, acquire timeout "+acquireTimeout+"ms, idle timeout "+idleTimeout+"ms");
+	}
+
+	public ODatabaseSession acquire() {
+		waiting.incrementAndGet();
+		long start=System.nanoTime();
+		try {
+			ODatabaseSession session=pool.acquire();
+			active.incrementAndGet();
+			acquired.incrementAndGet();
+			return session;
+		} catch (OAcquireTimeoutException e) {
+			timeouts.incrementAndGet();
+			LOGGER.warn("No database session available, "+active.get()+" active and "+waiting.get()+" waiting");
+			throw new ComplianceDocumentDatabaseUnavailableException("No database session available",e);
+		} finally {
+			waiting.decrementAndGet();
+			recordLatency((System.nanoTime()-start)/1000000);
+		}
+	}
+
+	public void release(ODatabaseSession session) {
+		if (session==null) return;
+		try {
+			session.close();
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private void recordLatency(long millis) {
+		int i=0;
+		while (i < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[i]) i++;
+		latencies.incrementAndGet(i);
+	}
+
+	public int getActive() {
+		return active.get();
+	}
+
+	//remaining capacity, the pool may still have to open a connection to hand one of these out
+	public int getAvailable() {
+		return Math.max(0,maxSessions-active.get());
+	}
+
+	public int getMax() {
+		return maxSessions;
+	}
+
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	public long getAcquired() {
+		return acquired.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	//bucket label (e.g. "<=10ms") to the number of acquires that took that long
+	public LinkedHashMap<String,Long> getAcquireLatencies() {
+		LinkedHashMap<String,Long> histogram=new LinkedHashMap<String,Long>();
+		for (int i=0; i < LATENCY_BUCKETS.length;i++) histogram.put("<="+LATENCY_BUCKETS[i]+"ms",latencies.get(i));
+		histogram.put(">"+LATENCY_BUCKETS[LATENCY_BUCKETS.length-1]+"ms",latencies.get(LATENCY_BUCKETS.length));
+		return histogram;
+	}
+
+	public void close() {
+		pool.close();
+	}
+}
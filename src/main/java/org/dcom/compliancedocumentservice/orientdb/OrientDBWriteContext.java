@@ -0,0 +1,135 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.OElement;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import java.io.IOException;
+import java.util.HashMap;
+import org.dcom.compliancedocumentservice.ComplianceDocumentFigureStore;
+import org.dcom.core.compliancedocument.ComplianceItem;
+
+/**
+*This holds the state of a single document write. Every node's existing record is read from the database at most once and the RID of every node written or matched is remembered, so comparing a node's children against what is stored needs no further queries.
+*Nodes created during the write only have temporary RIDs until the transaction commits, so links to them are made through the elements themselves which OrientDB updates on commit.
+*
+*/
+public class OrientDBWriteContext {
+
+	private ODatabaseSession session;
+	private String version;
+	//identifier to the stored record, a null value means there is no stored record
+	private HashMap<String,OResult> records=new HashMap<String,OResult>();
+	private HashMap<String,String> ids=new HashMap<String,String>();
+	private HashMap<String,OElement> elements=new HashMap<String,OElement>();
+	private OrientDBContentHash hashes=new OrientDBContentHash();
+	private ComplianceDocumentFigureStore figureStore;
+
+	public OrientDBWriteContext(ODatabaseSession session,String version) {
+		this(session,version,null);
+	}
+
+	public OrientDBWriteContext(ODatabaseSession session,String version,ComplianceDocumentFigureStore figureStore) {
+		this.session=session;
+		this.version=version;
+		this.figureStore=figureStore;
+	}
+
+	public ODatabaseSession getSession() {
+		return session;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public OResult getRecord(ComplianceItem item) {
+		String identifier=item.getIdentifier();
+		if (records.containsKey(identifier)) return records.get(identifier);
+		//an item not yet given an identifier has nothing stored
+		if (identifier==null) return null;
+		OResult r=null;
+		OResultSet rs=session.command("select from V where identifier=?",identifier);
+		if (rs.hasNext()) r=rs.next();
+		rs.close();
+		records.put(identifier,r);
+		if (r!=null) ids.put(identifier,r.getProperty("@rid").toString());
+		return r;
+	}
+
+	public String getId(ComplianceItem item) {
+		String id=ids.get(item.getIdentifier());
+		if (id!=null) return id;
+		OResult r=getRecord(item);
+		if (r==null) return null;
+		return r.getProperty("@rid").toString();
+	}
+
+	public String getContentHash(ComplianceItem item) {
+		return hashes.hash(item);
+	}
+
+	//the RID of the stored node if it already holds exactly this item's subtree, otherwise null
+	public String getUnchanged(ComplianceItem item) {
+		OResult r=getRecord(item);
+		if (r==null || !r.hasProperty("contentHash")) return null;
+		if (!getContentHash(item).equals(r.getProperty("contentHash"))) return null;
+		return r.getProperty("@rid").toString();
+	}
+
+	//the hash of the image in the figure store, null when it has to be kept on the vertex instead
+	public String storeFigure(String imageData) throws IOException {
+		if (figureStore==null) return null;
+		return figureStore.put(imageData);
+	}
+
+	public long getFigureSize(String hash) throws IOException {
+		return figureStore.getSize(hash);
+	}
+
+	public void written(ComplianceItem item,String id) {
+		ids.put(item.getIdentifier(),id);
+	}
+
+	//remembers a newly created element and returns its (temporary) RID
+	public String created(OElement element) {
+		String id=element.getIdentity().toString();
+		elements.put(id,element);
+		return id;
+	}
+
+	public OElement getElement(String id) {
+		OElement element=elements.get(id);
+		if (element!=null) return element;
+		element=session.load(new ORecordId(id));
+		elements.put(id,element);
+		return element;
+	}
+
+	public OIdentifiable getLink(String id) {
+		if (id==null) return null;
+		OElement element=elements.get(id);
+		if (element!=null) return element;
+		return new ORecordId(id);
+	}
+}
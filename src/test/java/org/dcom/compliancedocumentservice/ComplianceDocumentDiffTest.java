@@ -0,0 +1,126 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.ComplianceItem;
+import org.dcom.core.compliancedocument.Paragraph;
+import org.dcom.core.compliancedocument.Section;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+*Checks the child alignment of ComplianceDocumentDiff past the size where it stops keeping a full LCS table, and diffs a large generated document.
+*
+*/
+public class ComplianceDocumentDiffTest {
+
+		private static int[] matches(int[] a,int[] b) {
+			int[] matched=new int[a.length];
+			for (int i=0; i < a.length;i++) matched[i]=-1;
+			ComplianceDocumentDiff.lcs(a,0,a.length,b,0,b.length,matched);
+			return matched;
+		}
+
+		//the length of the LCS worked out the plain way, to compare against
+		private static int length(int[] a,int[] b) {
+			int[][] lcs=new int[a.length+1][b.length+1];
+			for (int i=a.length-1; i >= 0;i--) {
+				for (int j=b.length-1; j >= 0;j--) {
+					if (a[i]==b[j]) lcs[i][j]=lcs[i+1][j+1]+1;
+					else lcs[i][j]=Math.max(lcs[i+1][j],lcs[i][j+1]);
+				}
+			}
+			return lcs[0][0];
+		}
+
+		private static int[] random(Random random,int size,int values) {
+			int[] items=new int[size];
+			for (int i=0; i < size;i++) items[i]=random.nextInt(values);
+			return items;
+		}
+
+		@Test
+		public void testSplitAlignmentIsALongestCommonSubsequence() {
+			Random random=new Random(42);
+			for (int[] sizes: new int[][]{{1500,1200},{2000,700},{1,1200000},{400000,3}}) {
+				int[] a=random(random,sizes[0],20);
+				int[] b=random(random,sizes[1],20);
+				assertTrue((long)(a.length+1)*(b.length+1) > ComplianceDocumentDiff.MAX_TABLE_CELLS);
+				int[] matched=matches(a,b);
+				int count=0;
+				int last=-1;
+				for (int i=0; i < a.length;i++) {
+					if (matched[i]==-1) continue;
+					assertEquals(a[i],b[matched[i]]);
+					assertTrue(matched[i] > last);
+					last=matched[i];
+					count++;
+				}
+				if (sizes[1] < 1000000) assertEquals(length(a,b),count);
+				else assertEquals(1,count);
+			}
+		}
+
+		private static ComplianceDocument document(int paragraphs,boolean previous) {
+			ComplianceDocument document=new ComplianceDocument();
+			Section section=new Section(document);
+			document.addSection(section);
+			for (int i=0; i < paragraphs;i++) {
+				Paragraph paragraph=new Paragraph(section);
+				//every tenth paragraph is reworded, and one in every hundred was removed since the previous version
+				paragraph.setMetaData("dcterms:title",(previous && i%10==5 ? "Was " : "")+"Paragraph "+i);
+				if (!previous && i%100==50) continue;
+				section.addParagraph(paragraph);
+			}
+			return document;
+		}
+
+		private static int count(ComplianceItem item,String mark) {
+			int count=item.hasMetaData(mark) ? 1 : 0;
+			for (int i=0; i < item.getNoSubItems();i++) count+=count(item.getSubItem(i),mark);
+			return count;
+		}
+
+		//a long flat section with changes spread through it, too big for the full table
+		@Test(timeout=60000)
+		public void testLargeDocument() {
+			int paragraphs=5000;
+			long started=System.currentTimeMillis();
+			ComplianceDocument diff=ComplianceDocumentDiff.diff(document(paragraphs,false),document(paragraphs,true));
+			System.out.println("Diffed "+paragraphs+" paragraphs in "+(System.currentTimeMillis()-started)+"ms");
+			int reworded=paragraphs/10;
+			int removed=paragraphs/100;
+			assertEquals(reworded,count(diff,"inserted"));
+			assertEquals(reworded+removed,count(diff,"deleted"));
+			assertEquals(0,count(diff,"moved"));
+			ComplianceItem section=diff.getSection(0);
+			assertEquals(paragraphs+reworded,section.getNoSubItems());
+			for (int i=0; i < section.getNoSubItems();i++) {
+				ComplianceItem paragraph=section.getSubItem(i);
+				//apart from the removed paragraphs (numbered ..50) only the old wordings come back as deleted
+				String title=paragraph.getMetaDataString("dcterms:title");
+				if (!title.endsWith("50")) assertEquals(title.startsWith("Was "),paragraph.hasMetaData("deleted"));
+				assertFalse(paragraph.hasMetaData("deleted") && paragraph.hasMetaData("inserted"));
+			}
+		}
+}
@@ -0,0 +1,149 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+*Checks how ComplianceDocumentExecutor answers work that times out and work that arrives after it has been closed.
+*
+*/
+public class ComplianceDocumentExecutorTest {
+
+		//keeps what the request was resumed with, the timeout handler is called by the test rather than a container
+		private static class TestAsyncResponse implements AsyncResponse {
+			Object result;
+			TimeoutHandler handler;
+			CountDownLatch resumed=new CountDownLatch(1);
+
+			public synchronized boolean resume(Object response) {
+				if (result!=null) return false;
+				result=response;
+				resumed.countDown();
+				return true;
+			}
+
+			public boolean resume(Throwable response) {
+				return resume((Object)response);
+			}
+
+			public boolean cancel() {
+				return false;
+			}
+
+			public boolean cancel(int retryAfter) {
+				return false;
+			}
+
+			public boolean cancel(Date retryAfter) {
+				return false;
+			}
+
+			public boolean isSuspended() {
+				return result==null;
+			}
+
+			public boolean isCancelled() {
+				return false;
+			}
+
+			public synchronized boolean isDone() {
+				return result!=null;
+			}
+
+			public boolean setTimeout(long time,TimeUnit unit) {
+				return true;
+			}
+
+			public void setTimeoutHandler(TimeoutHandler handler) {
+				this.handler=handler;
+			}
+
+			public Collection<Class<?>> register(Class<?> callback) {
+				return Collections.emptyList();
+			}
+
+			public Map<Class<?>,Collection<Class<?>>> register(Class<?> callback,Class<?>... callbacks) {
+				return Collections.emptyMap();
+			}
+
+			public Collection<Class<?>> register(Object callback) {
+				return Collections.emptyList();
+			}
+
+			public Map<Class<?>,Collection<Class<?>>> register(Object callback,Object... callbacks) {
+				return Collections.emptyMap();
+			}
+		}
+
+		@Test
+		public void testTimedOutWorkIsNotInterrupted() throws Exception {
+			ComplianceDocumentExecutor executor=new ComplianceDocumentExecutor("Test",1,1,1000);
+			final CountDownLatch started=new CountDownLatch(1);
+			final CountDownLatch release=new CountDownLatch(1);
+			final AtomicBoolean interrupted=new AtomicBoolean();
+			final CountDownLatch finished=new CountDownLatch(1);
+			TestAsyncResponse response=new TestAsyncResponse();
+			executor.submit(response,() -> {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					interrupted.set(true);
+				}
+				finished.countDown();
+				return Response.ok().build();
+			});
+			assertTrue(started.await(5,TimeUnit.SECONDS));
+			response.handler.handleTimeout(response);
+			assertTrue(response.result instanceof ComplianceDocumentDatabaseUnavailableException);
+			release.countDown();
+			assertTrue(finished.await(5,TimeUnit.SECONDS));
+			assertFalse(interrupted.get());
+			assertEquals(1,executor.getTimeouts());
+			executor.close();
+		}
+
+		@Test
+		public void testClosedExecutorAnswersUnavailable() throws Exception {
+			ComplianceDocumentExecutor executor=new ComplianceDocumentExecutor("Test",1,1,0);
+			TestAsyncResponse before=new TestAsyncResponse();
+			executor.submit(before,() -> Response.ok().build());
+			assertTrue(before.resumed.await(5,TimeUnit.SECONDS));
+			assertTrue(before.result instanceof Response);
+			executor.close();
+			TestAsyncResponse after=new TestAsyncResponse();
+			executor.submit(after,() -> Response.ok().build());
+			assertTrue(after.result instanceof ComplianceDocumentDatabaseUnavailableException);
+			assertEquals(1,executor.getRejected());
+		}
+}
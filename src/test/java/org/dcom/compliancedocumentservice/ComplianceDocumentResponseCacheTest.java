@@ -0,0 +1,74 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.ws.rs.core.StreamingOutput;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+*Checks responses are kept as they are streamed, unless they are too large or the document changed while they were written.
+*
+*/
+public class ComplianceDocumentResponseCacheTest {
+
+		private static StreamingOutput body(int size) {
+			char[] data=new char[size];
+			Arrays.fill(data,'a');
+			return ComplianceDocumentStreamingOutput.list("",new ArrayList<String>(Arrays.asList(new String(data))),"","");
+		}
+
+		private static byte[] stream(ComplianceDocumentResponseCache cache,String key,StreamingOutput output,long started) throws Exception {
+			ByteArrayOutputStream out=new ByteArrayOutputStream();
+			cache.fill(key,output,started).write(out);
+			return out.toByteArray();
+		}
+
+		@Test
+		public void testStreamedResponseIsKept() throws Exception {
+			ComplianceDocumentResponseCache cache=new ComplianceDocumentResponseCache(1000);
+			byte[] streamed=stream(cache,"gb/approved/sample/1|application/json",body(200),cache.getGeneration());
+			assertEquals(200,streamed.length);
+			assertArrayEquals(streamed,cache.get("gb/approved/sample/1|application/json").getBody());
+			assertEquals(ComplianceDocumentHashes.sha256(streamed),cache.get("gb/approved/sample/1|application/json").getETag());
+		}
+
+		@Test
+		public void testLargeResponseIsStreamedButNotKept() throws Exception {
+			ComplianceDocumentResponseCache cache=new ComplianceDocumentResponseCache(1000);
+			byte[] streamed=stream(cache,"gb/approved/sample/1|application/json",body(251),cache.getGeneration());
+			assertEquals(new String(ComplianceDocumentStreamingOutput.toBytes(body(251)),StandardCharsets.UTF_8),new String(streamed,StandardCharsets.UTF_8));
+			assertNull(cache.get("gb/approved/sample/1|application/json"));
+		}
+
+		@Test
+		public void testInvalidatedWhileStreamingIsNotKept() throws Exception {
+			ComplianceDocumentResponseCache cache=new ComplianceDocumentResponseCache(1000);
+			long started=cache.getGeneration();
+			cache.invalidate("gb","approved","sample");
+			stream(cache,"gb/approved/sample/1|application/json",body(200),started);
+			assertNull(cache.get("gb/approved/sample/1|application/json"));
+		}
+}
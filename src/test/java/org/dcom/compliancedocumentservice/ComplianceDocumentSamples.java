@@ -0,0 +1,156 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import org.dcom.core.compliancedocument.*;
+
+/**
+*This helper class builds the compliance documents the tests upload, load and compare.
+*
+*/
+public class ComplianceDocumentSamples {
+
+		//a one pixel png, as a data uri it has a '/' and its base64 a '+' so both need care when written out
+		public static final String IMAGE="data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNk+M9QDwADhgGAWjR9awAAAABJRU5ErkJggg==";
+
+		// global sections and paragraphs, an unnumbered paragraph ahead of numbered ones, titled items, a dummy section, a figure, a table and rules
+		public static ComplianceDocument sample(String version) {
+			return build(version,false);
+		}
+
+		// the sample with a paragraph deleted, one changed, one inserted and one added to an empty section
+		public static ComplianceDocument edited(String version) {
+			return build(version,true);
+		}
+
+		private static ComplianceDocument build(String version,boolean edited) {
+			ComplianceDocument document=new ComplianceDocument();
+			document.setVersion(version);
+			document.setMetaData("dcterms:title","Sample Document");
+			Section general=section(document,"General",true);
+			if (!edited) paragraph(general,null,false,"An unnumbered introduction.");
+			Paragraph first=paragraph(general,null,true,"The first requirement.");
+			paragraph(first,null,true,"A sub clause.");
+			paragraph(first,null,true,"Another sub clause.");
+			Rule rule=new Rule(first);
+			rule.setMetaData("raseType","requirement");
+			rule.setMetaData("raseId","R1");
+			first.addRule(rule);
+			Figure figure=new Figure(first);
+			figure.setMetaData("dcterms:title","Plan");
+			figure.setImageData(IMAGE);
+			first.addInsert(figure);
+			first.addInsert(table(first));
+			paragraph(general,"Note",false,"A titled paragraph.");
+			paragraph(general,null,true,edited ? "The second requirement, amended." : "The second requirement.");
+			Section scope=section(document,"Scope",true);
+			Section dummy=section(scope,null,false);
+			paragraph(dummy,null,true,"Numbered on from the parent section.");
+			if (edited) paragraph(dummy,null,true,"Inserted between the others.");
+			paragraph(dummy,null,true,"And again.");
+			Section limits=section(scope,"Limits",false);
+			paragraph(limits,null,true,"A limit.");
+			paragraph(scope,null,true,"The last requirement.");
+			Section definitions=section(document,"Definitions",true);
+			if (edited) paragraph(definitions,"Building",false,"A structure.");
+			return document;
+		}
+
+		private static Section section(ComplianceItem parent,String title,boolean global) {
+			Section section=new Section(parent);
+			if (title!=null) section.setMetaData("dcterms:title",title);
+			if (global) section.setMetaData("numbered","global");
+			if (parent instanceof ComplianceDocument) ((ComplianceDocument)parent).addSection(section);
+			else ((Section)parent).addSection(section);
+			return section;
+		}
+
+		private static Paragraph paragraph(ComplianceItem parent,String title,boolean global,String body) {
+			Paragraph paragraph=new Paragraph(parent);
+			if (title!=null) paragraph.setMetaData("dcterms:title",title);
+			if (global) paragraph.setMetaData("numbered","global");
+			paragraph.setBodyText(body);
+			if (parent instanceof Section) ((Section)parent).addParagraph(paragraph);
+			else ((Paragraph)parent).addParagraph(paragraph);
+			return paragraph;
+		}
+
+		private static Table table(ComplianceItem parent) {
+			Table table=new Table(parent);
+			table.setMetaData("dcterms:title","Sizes");
+			TableHeader header=new TableHeader(table);
+			Row titles=new Row(header);
+			header.addRow(titles);
+			Cell title=new TitleCell(titles);
+			title.setMetaData("dcterms:title","Width");
+			titles.addCell(title);
+			table.setHeader(header);
+			TableBody body=new TableBody(table);
+			Row values=new Row(body);
+			body.addRow(values);
+			Cell value=new DataCell(values);
+			value.setMetaData("dcterms:title","900mm");
+			value.setMetaData("colspan","2");
+			values.addCell(value);
+			table.setBody(body);
+			return table;
+		}
+
+		// the content of a document item by item, leaving out numbers and metadata that only the database adds
+		public static String outline(ComplianceItem item) {
+			StringBuffer str=new StringBuffer();
+			outline(item,0,str);
+			return str.toString();
+		}
+
+		private static final String[] CONTENT={"dcterms:title","numbered","raseType","raseId","colspan"};
+
+		private static void outline(ComplianceItem item,int depth,StringBuffer str) {
+			for (int i=0; i < depth;i++) str.append("  ");
+			str.append(item.getClass().getSimpleName());
+			for (String mD: CONTENT) {
+				if (item.hasMetaData(mD)) str.append(' ').append(mD).append('=').append(item.getMetaDataString(mD));
+			}
+			if (item instanceof Paragraph && ((Paragraph)item).getBodyText()!=null) str.append(" body=").append(((Paragraph)item).getBodyText());
+			if (item instanceof Figure) str.append(" image=").append(((Figure)item).getImageDataString());
+			str.append('\n');
+			if (item instanceof Table) {
+				Table t=(Table)item;
+				if (t.getHeader()!=null) outline(t.getHeader(),depth+1,str);
+				if (t.getBody()!=null) outline(t.getBody(),depth+1,str);
+				if (t.getFooter()!=null) outline(t.getFooter(),depth+1,str);
+				return;
+			}
+			if (item instanceof TableGroup) {
+				TableGroup tg=(TableGroup)item;
+				for (int i=0; i < tg.getNoRows();i++) outline(tg.getRow(i),depth+1,str);
+				return;
+			}
+			if (item instanceof Row) {
+				Row row=(Row)item;
+				for (int i=0; i < row.getNoCells();i++) outline(row.getCell(i),depth+1,str);
+				return;
+			}
+			if (item instanceof Paragraph) {
+				Paragraph p=(Paragraph)item;
+				for (int i=0; i < p.getNoRules();i++) outline(p.getRule(i),depth+1,str);
+			}
+			for (int i=0; i < item.getNoSubItems();i++) outline(item.getSubItem(i),depth+1,str);
+		}
+}
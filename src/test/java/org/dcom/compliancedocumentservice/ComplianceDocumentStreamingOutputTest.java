@@ -0,0 +1,134 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice;
+
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.Figure;
+import org.dcom.core.compliancedocument.Paragraph;
+import org.dcom.core.compliancedocument.Section;
+import org.dcom.core.compliancedocument.serialisers.JSONComplianceDocumentSerialiser;
+import org.dcom.core.compliancedocument.serialisers.XMLComplianceDocumentSerialiser;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+*Checks documents written out by ComplianceDocumentStreamingOutput are byte for byte what the DCOMCore serialisers produce, however their images are written.
+*
+*/
+public class ComplianceDocumentStreamingOutputTest {
+
+		private static void assertSameAsSerialisers(ComplianceDocument document) {
+			String json=JSONComplianceDocumentSerialiser.serialise(document);
+			String xml=XMLComplianceDocumentSerialiser.serialise(document);
+			assertArrayEquals(json.getBytes(StandardCharsets.UTF_8),ComplianceDocumentStreamingOutput.toBytes(ComplianceDocumentStreamingOutput.json(document)));
+			assertArrayEquals(xml.getBytes(StandardCharsets.UTF_8),ComplianceDocumentStreamingOutput.toBytes(ComplianceDocumentStreamingOutput.xml(document)));
+			//the images are put back once they have been written
+			assertEquals(json,JSONComplianceDocumentSerialiser.serialise(document));
+		}
+
+		private static Figure figure(ComplianceDocument document) {
+			Paragraph p=document.getSection(0).getParagraph(1);
+			for (int i=0; i < p.getNoInserts();i++) {
+				if (p.getInsert(i) instanceof Figure) return (Figure)p.getInsert(i);
+			}
+			return null;
+		}
+
+		@Test
+		public void testSample() {
+			assertSameAsSerialisers(ComplianceDocumentSamples.sample("1"));
+		}
+
+		@Test
+		public void testLargeImage() {
+			ComplianceDocument document=ComplianceDocumentSamples.sample("1");
+			char[] data=new char[100000];
+			for (int i=0; i < data.length;i++) data[i]="AB+/cd09=".charAt(i%9);
+			figure(document).setImageData("data:image/png;base64,"+new String(data));
+			assertSameAsSerialisers(document);
+		}
+
+		@Test
+		public void testImageTheStreamCannotEscape() {
+			//left to the serialiser
+			ComplianceDocument document=ComplianceDocumentSamples.sample("1");
+			figure(document).setImageData("data:image/svg+xml,<svg title=\"a & b\">\u00e9</svg>");
+			assertSameAsSerialisers(document);
+		}
+
+		@Test
+		public void testWithoutImages() {
+			ComplianceDocument document=new ComplianceDocument();
+			document.setVersion("1");
+			document.setMetaData("dcterms:title","No Figures");
+			assertSameAsSerialisers(document);
+		}
+
+		@Test
+		public void testList() {
+			ArrayList<String> items=new ArrayList<String>(Arrays.asList("{\"a\":1}","{\"b\":2}"));
+			assertEquals("[{\"a\":1},{\"b\":2}]",new String(ComplianceDocumentStreamingOutput.toBytes(ComplianceDocumentStreamingOutput.list("[",items,",","]")),StandardCharsets.UTF_8));
+		}
+
+		@Test
+		public void testSectionsAreWrittenSeparately() {
+			ComplianceDocument document=ComplianceDocumentSamples.sample("1");
+			assertNotNull(ComplianceDocumentStreamingOutput.learnFrame(document,true));
+			assertNotNull(ComplianceDocumentStreamingOutput.learnFrame(document,false));
+		}
+
+		@Test
+		public void testImagesInSeveralSections() {
+			ComplianceDocument document=ComplianceDocumentSamples.sample("1");
+			document.setMetaData("dcterms:subject","fire");
+			document.setMetaData("dcterms:subject","\"escape\" <this> & /that/");
+			Section last=document.getSection(document.getNoSections()-1);
+			Paragraph p=new Paragraph(last);
+			p.setBodyText("With a figure of its own.");
+			Figure figure=new Figure(p);
+			figure.setImageData(ComplianceDocumentSamples.IMAGE);
+			p.addInsert(figure);
+			last.addParagraph(p);
+			assertSameAsSerialisers(document);
+		}
+
+		private static ComplianceDocumentIndexItem indexItem(String shortName) {
+			ArrayList<HashMap<String,String>> versions=new ArrayList<HashMap<String,String>>();
+			HashMap<String,String> version=new HashMap<String,String>();
+			version.put("versionName","1");
+			version.put("versionDate","01012020");
+			versions.add(version);
+			return new ComplianceDocumentIndexItem(shortName+"-id",shortName,"A \"Title\"","approved","gb",null,"1","01012020",versions);
+		}
+
+		@Test
+		public void testIndex() {
+			ArrayList<ComplianceDocumentIndexItem> documents=new ArrayList<ComplianceDocumentIndexItem>(Arrays.asList(indexItem("a"),indexItem("b")));
+			String json="["+documents.get(0).toJSONContent()+","+documents.get(1).toJSONContent()+"]";
+			assertEquals(json,new String(ComplianceDocumentStreamingOutput.toBytes(ComplianceDocumentStreamingOutput.jsonIndex("[",documents,"]")),StandardCharsets.UTF_8));
+			String xml="<DocumentList>"+documents.get(0).toXMLContent()+documents.get(1).toXMLContent()+"</DocumentList>";
+			assertEquals(xml,new String(ComplianceDocumentStreamingOutput.toBytes(ComplianceDocumentStreamingOutput.xmlIndex("<DocumentList>",documents,"</DocumentList>")),StandardCharsets.UTF_8));
+		}
+}
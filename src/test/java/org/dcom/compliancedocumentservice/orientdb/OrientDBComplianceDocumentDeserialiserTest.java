@@ -0,0 +1,141 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.compliancedocumentservice.ComplianceDocumentSamples;
+import org.dcom.compliancedocumentservice.ComplianceDocumentLoadOptions;
+import org.dcom.compliancedocumentservice.ComplianceDocumentFilter;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.serialisers.JSONComplianceDocumentSerialiser;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+*Writes the sample documents to an in memory database and checks they load back as they were written, and as the original one query per vertex deserialiser loads them.
+*
+*/
+public class OrientDBComplianceDocumentDeserialiserTest {
+
+  private OrientDBTestDatabase database;
+
+  @Before
+  public void setUp() {
+    database=new OrientDBTestDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    database.close();
+  }
+
+  private String baseline(String version) {
+    ODatabaseSession session=database.acquire();
+    try {
+      return JSONComplianceDocumentSerialiser.serialise(BaselineOrientDBComplianceDocumentDeserialiser.parseComplianceDocument(OrientDBTestDatabase.URL+"/"+version,session,database.getDocumentId(),version));
+    } finally {
+      database.release(session);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    ComplianceDocument loaded=database.load("1");
+    assertNotNull(loaded);
+    assertEquals(ComplianceDocumentSamples.outline(ComplianceDocumentSamples.sample("1")),ComplianceDocumentSamples.outline(loaded));
+  }
+
+  @Test
+  public void testRoundTripOfLoadedDocument() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    String before=JSONComplianceDocumentSerialiser.serialise(database.load("1"));
+    //unchanged items are detected and kept as they are
+    database.upload(database.load("1"));
+    assertEquals(before,JSONComplianceDocumentSerialiser.serialise(database.load("1")));
+  }
+
+  @Test
+  public void testVersionsRoundTrip() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    database.upload(ComplianceDocumentSamples.edited("2"));
+    assertEquals(ComplianceDocumentSamples.outline(ComplianceDocumentSamples.sample("1")),ComplianceDocumentSamples.outline(database.load("1")));
+    assertEquals(ComplianceDocumentSamples.outline(ComplianceDocumentSamples.edited("2")),ComplianceDocumentSamples.outline(database.load("2")));
+  }
+
+  @Test
+  public void testMatchesBaseline() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    database.upload(ComplianceDocumentSamples.edited("2"));
+    for (String version: new String[] {"1","2"}) {
+      String expected=baseline(version);
+      database.get().setBatchLoading(true);
+      assertEquals(expected,JSONComplianceDocumentSerialiser.serialise(database.load(version)));
+      database.get().setBatchLoading(false);
+      assertEquals(expected,JSONComplianceDocumentSerialiser.serialise(database.load(version)));
+      database.get().setBatchLoading(true);
+      database.get().setParallelLoading(4);
+      assertEquals(expected,JSONComplianceDocumentSerialiser.serialise(database.load(version)));
+      database.get().setParallelLoading(1);
+    }
+  }
+
+  //structure loads read every record with the body left out by the projection, links then come back as bare RIDs rather than loaded records
+  @Test
+  public void testStructureMatchesFilterBodies() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    database.upload(ComplianceDocumentSamples.edited("2"));
+    for (String version: new String[] {"1","2"}) {
+      String expected=JSONComplianceDocumentSerialiser.serialise(ComplianceDocumentFilter.filterBodies(database.load(version)));
+      for (boolean batch: new boolean[] {true,false}) {
+        database.get().setBatchLoading(batch);
+        ComplianceDocument structure=database.get().getDocument(OrientDBTestDatabase.BASE,OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,OrientDBTestDatabase.SHORT_NAME,version,ComplianceDocumentLoadOptions.STRUCTURE);
+        assertEquals(expected,JSONComplianceDocumentSerialiser.serialise(structure));
+      }
+    }
+  }
+
+  private String load(String version,OrientDBParallelLoader loader) {
+    String docId=database.getDocumentId();
+    ODatabaseSession session=database.acquire();
+    try {
+      return JSONComplianceDocumentSerialiser.serialise(OrientDBComplianceDocumentDeserialiser.parseComplianceDocument(OrientDBTestDatabase.URL+"/"+version,session,docId,version,true,ComplianceDocumentLoadOptions.FULL,loader));
+    } finally {
+      database.release(session);
+    }
+  }
+
+  @Test
+  public void testTablesInParallelMatchBaseline() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    String expected=baseline("1");
+    //every table group counts as large so each has its rows read on a session of its own
+    OrientDBParallelLoader loader=new OrientDBParallelLoader(database.get().getSessionPool(),4,1);
+    try {
+      assertEquals(expected,load("1",loader));
+    } finally {
+      loader.close();
+    }
+    //once closed everything is read on the caller's session
+    assertEquals(expected,load("1",loader));
+  }
+}
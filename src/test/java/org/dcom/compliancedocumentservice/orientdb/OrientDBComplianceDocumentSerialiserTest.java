@@ -0,0 +1,111 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.compliancedocumentservice.ComplianceDocumentSamples;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.Paragraph;
+import org.dcom.core.compliancedocument.Section;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.OElement;
+import com.orientechnologies.orient.core.record.OVertex;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+*Counts the queries a document write makes, each node's stored record should be looked up once at most and an unchanged section not looked into at all.
+*
+*/
+public class OrientDBComplianceDocumentSerialiserTest {
+
+  private OrientDBTestDatabase database;
+
+  @Before
+  public void setUp() throws Exception {
+    database=new OrientDBTestDatabase();
+    database.upload(ComplianceDocumentSamples.sample("1"));
+  }
+
+  @After
+  public void tearDown() {
+    database.close();
+  }
+
+  //writes the document into the named version, made as a copy of version 1 as an upload would when it does not exist yet, and gives the number of commands the serialiser ran
+  private int write(ComplianceDocument document,String versionName) throws Exception {
+    ODatabaseSession session=database.acquire();
+    try {
+      session.begin();
+      OResultSet rs=session.command("select from Version where versionName=?",versionName);
+      OElement version;
+      if (rs.hasNext()) {
+        version=session.load(new ORecordId(rs.next().getProperty("@rid").toString()));
+      } else {
+        OResultSet previous=session.command("select from Version where versionName='1'");
+        OResult first=previous.next();
+        previous.close();
+        OVertex created=session.newVertex("Version");
+        created.setProperty("versionName",versionName);
+        created.setProperty("partOf",first.getProperty("partOf"));
+        created.setProperty("sections",first.getProperty("sections"));
+        created.save();
+        version=created;
+      }
+      rs.close();
+      AtomicInteger commands=new AtomicInteger();
+      OrientDBComplianceDocumentSerialiser.serialise(OrientDBTestDatabase.counting(session,commands),version,document);
+      session.commit();
+      return commands.get();
+    } finally {
+      database.release(session);
+    }
+  }
+
+  private static int nodes(ComplianceDocument document) {
+    int count=0;
+    for (int i=0; i < document.getNoSections();i++) count+=ComplianceDocumentSamples.outline(document.getSection(i)).split("\n").length;
+    return count;
+  }
+
+  @Test
+  public void testUnchangedSectionsNeedOneLookupEach() throws Exception {
+    ComplianceDocument document=database.load("1");
+    assertEquals(document.getNoSections(),write(document,"1"));
+  }
+
+  //a new version made from the stored one with one paragraph changed, as an editor would upload it
+  @Test
+  public void testEachNodeIsLookedUpOnceAtMost() throws Exception {
+    ComplianceDocument document=database.load("1");
+    document.setVersion("2");
+    Section scope=(Section)document.getSection(1);
+    ((Paragraph)scope.getSubItem(scope.getNoSubItems()-1)).setBodyText("The last requirement, amended.");
+    int commands=write(document,"2");
+    assertTrue(commands+" commands for "+nodes(document)+" nodes",commands > 0 && commands <= nodes(document));
+    assertEquals(ComplianceDocumentSamples.outline(document.getSection(1)),ComplianceDocumentSamples.outline(database.load("2").getSection(1)));
+    assertEquals(ComplianceDocumentSamples.outline(ComplianceDocumentSamples.sample("1").getSection(1)),ComplianceDocumentSamples.outline(database.load("1").getSection(1)));
+  }
+}
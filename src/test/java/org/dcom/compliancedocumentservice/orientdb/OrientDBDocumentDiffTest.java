@@ -0,0 +1,78 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.compliancedocumentservice.ComplianceDocumentDiff;
+import org.dcom.compliancedocumentservice.ComplianceDocumentSamples;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.serialisers.JSONComplianceDocumentSerialiser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+*Checks diffs worked out in the database give the same document as diffing the two fully loaded versions in memory, as was done before.
+*
+*/
+public class OrientDBDocumentDiffTest {
+
+  private OrientDBTestDatabase database;
+
+  @Before
+  public void setUp() throws Exception {
+    database=new OrientDBTestDatabase();
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    database.upload(ComplianceDocumentSamples.edited("2"));
+  }
+
+  @After
+  public void tearDown() {
+    database.close();
+  }
+
+  private String diff(String version,String previousVersion) {
+    return JSONComplianceDocumentSerialiser.serialise(database.get().getDiff(OrientDBTestDatabase.BASE,OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,OrientDBTestDatabase.SHORT_NAME,version,previousVersion));
+  }
+
+  @Test
+  public void testMatchesInMemoryDiff() {
+    ComplianceDocument expected=ComplianceDocumentDiff.diff(database.load("2"),database.load("1"));
+    assertEquals(JSONComplianceDocumentSerialiser.serialise(expected),diff("2","1"));
+  }
+
+  @Test
+  public void testMatchesInMemoryDiffBackwards() {
+    ComplianceDocument expected=ComplianceDocumentDiff.diff(database.load("1"),database.load("2"));
+    assertEquals(JSONComplianceDocumentSerialiser.serialise(expected),diff("1","2"));
+  }
+
+  @Test
+  public void testUnchanged() {
+    ComplianceDocument expected=ComplianceDocumentDiff.diff(database.load("2"),database.load("2"));
+    assertEquals(JSONComplianceDocumentSerialiser.serialise(expected),diff("2","2"));
+  }
+
+  @Test
+  public void testMissingVersion() {
+    //everything shows as inserted, as when the missing version was loaded as an empty document
+    ComplianceDocument expected=ComplianceDocumentDiff.diff(database.load("2"),new ComplianceDocument());
+    assertEquals(JSONComplianceDocumentSerialiser.serialise(expected),diff("2","9"));
+  }
+}
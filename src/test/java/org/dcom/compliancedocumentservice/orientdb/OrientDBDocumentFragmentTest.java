@@ -0,0 +1,146 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.compliancedocumentservice.ComplianceDocumentFilter;
+import org.dcom.compliancedocumentservice.ComplianceDocumentSamples;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import org.dcom.core.compliancedocument.ComplianceItem;
+import org.dcom.core.compliancedocument.serialisers.JSONComplianceDocumentSerialiser;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import java.util.LinkedHashSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+*Checks every fragment read through the access path index is the same document ComplianceDocumentFilter.filterPath gives from the whole version.
+*
+*/
+public class OrientDBDocumentFragmentTest {
+
+  private OrientDBTestDatabase database;
+
+  @Before
+  public void setUp() {
+    database=new OrientDBTestDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    database.close();
+  }
+
+  private static void collect(ComplianceItem item,String url,LinkedHashSet<String> references) {
+    for (int i=0; i < item.getNoSubItems();i++) {
+      ComplianceItem subItem=item.getSubItem(i);
+      String location=subItem.getAccessURL();
+      if (location!=null && location.startsWith(url+"/")) references.add(location.substring(url.length()+1));
+      collect(subItem,url,references);
+    }
+  }
+
+  //every numbered and titled path of the version, the inserts and a few the index has no entry for
+  private LinkedHashSet<String> references(String version) {
+    LinkedHashSet<String> references=new LinkedHashSet<String>();
+    collect(database.load(version),OrientDBTestDatabase.URL+"/"+version,references);
+    references.add("Figure/1");
+    references.add("Table/1");
+    references.add("9");
+    references.add("1/9");
+    return references;
+  }
+
+  private String fragment(String version,String reference) {
+    return JSONComplianceDocumentSerialiser.serialise(database.get().getDocumentFragment(OrientDBTestDatabase.BASE,OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,OrientDBTestDatabase.SHORT_NAME,version,reference));
+  }
+
+  private String filtered(String version,String reference) {
+    return JSONComplianceDocumentSerialiser.serialise(ComplianceDocumentFilter.filterPath(database.load(version),reference));
+  }
+
+  private void assertFragments(String version) {
+    LinkedHashSet<String> references=references(version);
+    assertTrue(references.size() > 5);
+    for (String reference: references) {
+      String expected=filtered(version,reference);
+      assertEquals(reference,expected,fragment(version,reference));
+      //the second time round the index is kept in memory
+      assertEquals(reference,expected,fragment(version,reference));
+    }
+  }
+
+  @Test
+  public void testMatchesFilterPath() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    assertFragments("1");
+  }
+
+  @Test
+  public void testMatchesFilterPathOfEditedVersion() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    database.upload(ComplianceDocumentSamples.edited("2"));
+    assertFragments("1");
+    assertFragments("2");
+  }
+
+  @Test
+  public void testUnnumberedParagraphBeforeNumbered() throws Exception {
+    //the unnumbered introduction takes the number of the paragraph after it so filterPath keeps both for 1/1
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    assertEquals(filtered("1","1/1"),fragment("1","1/1"));
+  }
+
+  @Test
+  public void testRewrittenVersion() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    assertFragments("1");
+    //the kept index is dropped when the version is written again
+    database.upload(ComplianceDocumentSamples.edited("1"));
+    assertFragments("1");
+  }
+
+  @Test
+  public void testReferencesPastTheLimitAreLeftOut() throws Exception {
+    database.upload(ComplianceDocumentSamples.sample("1"));
+    String docId=database.getDocumentId();
+    String url=OrientDBTestDatabase.URL+"/1";
+    ODatabaseSession session=database.acquire();
+    try {
+      OrientDBDocumentRecords records=new OrientDBDocumentRecords(session);
+      ComplianceDocument document=OrientDBComplianceDocumentDeserialiser.parseComplianceDocument(url,records,docId,"1",true);
+      OrientDBAccessPathIndex whole=OrientDBAccessPathIndex.build(document,records,url);
+      OrientDBAccessPathIndex limited=OrientDBAccessPathIndex.build(document,records,url,2);
+      LinkedHashSet<String> references=new LinkedHashSet<String>();
+      collect(document,url,references);
+      int n=0;
+      for (String reference: references) {
+        //the first ones are indexed as without a limit, the rest are left to filterPath
+        if (n++ < 2) assertEquals(reference,whole.get(reference),limited.get(reference));
+        else assertNull(reference,limited.get(reference));
+      }
+      assertEquals(whole.get("Figure/1"),limited.get("Figure/1"));
+    } finally {
+      database.release(session);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.compliancedocumentservice.ComplianceDocumentIndexItem;
+import org.dcom.compliancedocumentservice.ComplianceDocumentSamples;
+import org.dcom.compliancedocumentservice.IndexedComplianceDocumentDatabase;
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+*Checks the document index read from the database, whole and one document at a time, and the in memory copy kept by IndexedComplianceDocumentDatabase.
+*
+*/
+public class OrientDBDocumentIndexTest {
+
+  private OrientDBTestDatabase database;
+
+  @Before
+  public void setUp() throws Exception {
+    database=new OrientDBTestDatabase();
+    database.upload(indexed(ComplianceDocumentSamples.sample("1"),"sample-id"));
+    database.get().updateDocument(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,"other",indexed(ComplianceDocumentSamples.sample("1"),"other-id"));
+  }
+
+  //the index lists the identifier and language every published document has
+  static ComplianceDocument indexed(ComplianceDocument document,String identifier) {
+    document.setMetaData("dcterms:identifier",identifier);
+    document.setMetaData("dcterms:language","en");
+    return document;
+  }
+
+  @After
+  public void tearDown() {
+    database.close();
+  }
+
+  @Test
+  public void testIndexItemMatchesIndex() {
+    ComplianceDocumentIndexItem item=database.get().getDocumentIndexItem(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,OrientDBTestDatabase.SHORT_NAME);
+    assertEquals(OrientDBTestDatabase.SHORT_NAME,item.getProperty("shortName"));
+    for (ComplianceDocumentIndexItem indexed: database.get().getDocumentIndex()) {
+      if (indexed.getProperty("shortName").equals(OrientDBTestDatabase.SHORT_NAME)) assertEquals(indexed.toJSONContent(),item.toJSONContent());
+    }
+    assertNull(database.get().getDocumentIndexItem(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,"missing"));
+    assertNull(database.get().getDocumentIndexItem("ie",OrientDBTestDatabase.TYPE,OrientDBTestDatabase.SHORT_NAME));
+  }
+
+  @Test
+  public void testRefreshUpdatesOnlyTheDocument() throws Exception {
+    IndexedComplianceDocumentDatabase indexed=new IndexedComplianceDocumentDatabase(database.get());
+    assertEquals(2,indexed.getDocumentIndex().size());
+    indexed.updateDocument(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,OrientDBTestDatabase.SHORT_NAME,indexed(ComplianceDocumentSamples.edited("2"),"sample-id"));
+    assertEquals(2,indexed.getDocumentIndex().size());
+    assertEquals("2",indexed.getDocumentIndexItem(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,OrientDBTestDatabase.SHORT_NAME).getProperty("latestVersion"));
+    assertEquals("1",indexed.getDocumentIndexItem(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,"other").getProperty("latestVersion"));
+    for (ComplianceDocumentIndexItem item: database.get().getDocumentIndex()) {
+      assertEquals(item.toJSONContent(),indexed.getDocumentIndexItem(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,item.getProperty("shortName").toString()).toJSONContent());
+    }
+  }
+
+  //the whole index comes back in one round trip to the database, not one per document and version
+  @Test
+  public void testIndexIsOneCommand() throws Exception {
+    for (int i=0; i < 10;i++) {
+      database.get().updateDocument(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,"document"+i,indexed(ComplianceDocumentSamples.sample("1"),"document"+i+"-id"));
+      database.get().updateDocument(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,"document"+i,indexed(ComplianceDocumentSamples.edited("2"),"document"+i+"-id"));
+    }
+    AtomicInteger commands=new AtomicInteger();
+    ODatabaseSession session=database.acquire();
+    ArrayList<ComplianceDocumentIndexItem> index;
+    try {
+      index=database.get().getDocumentIndex(OrientDBTestDatabase.counting(session,commands),null,null,null);
+    } finally {
+      database.release(session);
+    }
+    assertEquals(1,commands.get());
+    assertEquals(12,index.size());
+    for (ComplianceDocumentIndexItem item: index) {
+      if (item.getProperty("shortName").toString().startsWith("document")) {
+        assertEquals("2",item.getProperty("latestVersion"));
+        assertEquals(2,((ArrayList<?>)item.getProperty("versions")).size());
+      }
+    }
+  }
+}
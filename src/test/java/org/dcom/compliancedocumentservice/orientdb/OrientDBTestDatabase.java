@@ -0,0 +1,91 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.core.compliancedocument.ComplianceDocument;
+import com.orientechnologies.orient.core.db.ODatabaseSession;
+import com.orientechnologies.orient.core.db.ODatabaseType;
+import com.orientechnologies.orient.core.db.OrientDB;
+import com.orientechnologies.orient.core.db.OrientDBConfig;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+*This helper class gives each test its own in memory OrientDB database behind an OrientDBComplianceDocumentDatabase, with the schema migrated as on a server.
+*
+*/
+class OrientDBTestDatabase {
+
+  static final String BASE="http://localhost/ComplianceDocumentService";
+  static final String JURISDICTION="gb";
+  static final String TYPE="approved";
+  static final String SHORT_NAME="sample";
+  static final String URL=BASE+"/"+JURISDICTION+"/"+TYPE+"/"+SHORT_NAME;
+
+  private static final AtomicInteger COUNT=new AtomicInteger();
+  private OrientDB orientDB;
+  private OrientDBComplianceDocumentDatabase database;
+
+  OrientDBTestDatabase() {
+    orientDB=new OrientDB("embedded:",OrientDBConfig.defaultConfig());
+    String name="test"+COUNT.incrementAndGet();
+    database=new OrientDBComplianceDocumentDatabase(orientDB,ODatabaseType.MEMORY,"admin","admin",name,1,8,1000,5000);
+  }
+
+  OrientDBComplianceDocumentDatabase get() {
+    return database;
+  }
+
+  void upload(ComplianceDocument document) throws Exception {
+    database.updateDocument(JURISDICTION,TYPE,SHORT_NAME,document);
+  }
+
+  ComplianceDocument load(String version) {
+    return database.getDocument(BASE,JURISDICTION,TYPE,SHORT_NAME,version);
+  }
+
+  String getDocumentId() {
+    return database.getDocumentId(JURISDICTION,TYPE,SHORT_NAME);
+  }
+
+  ODatabaseSession acquire() {
+    return database.getSessionPool().acquire();
+  }
+
+  void release(ODatabaseSession session) {
+    database.getSessionPool().release(session);
+  }
+
+  //a session passing everything through to the real one, counting the commands run on it
+  static ODatabaseSession counting(ODatabaseSession session,AtomicInteger commands) {
+    return (ODatabaseSession)Proxy.newProxyInstance(ODatabaseSession.class.getClassLoader(),new Class<?>[]{ODatabaseSession.class},(proxy,method,args) -> {
+      if (method.getName().equals("command")) commands.incrementAndGet();
+      try {
+        return method.invoke(session,args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    });
+  }
+
+  void close() {
+    database.close();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.compliancedocumentservice.orientdb;
+
+import org.dcom.compliancedocumentservice.ComplianceDocumentResponseCache;
+import org.dcom.compliancedocumentservice.ComplianceDocumentSamples;
+import org.dcom.compliancedocumentservice.ComplianceDocumentWarmup;
+import javax.ws.rs.core.MediaType;
+import java.util.LinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+*Checks that warming up stays within the document cache, fills the response cache and is skipped when there is no document cache.
+*
+*/
+public class OrientDBWarmupTest {
+
+  private OrientDBTestDatabase database;
+  private ComplianceDocumentResponseCache responseCache;
+
+  @Before
+  public void setUp() throws Exception {
+    database=new OrientDBTestDatabase();
+    database.upload(OrientDBDocumentIndexTest.indexed(ComplianceDocumentSamples.sample("1"),"sample-id"));
+    database.get().updateDocument(OrientDBTestDatabase.JURISDICTION,OrientDBTestDatabase.TYPE,"other",OrientDBDocumentIndexTest.indexed(ComplianceDocumentSamples.sample("1"),"other-id"));
+    responseCache=new ComplianceDocumentResponseCache(64L*1024*1024);
+  }
+
+  @After
+  public void tearDown() {
+    database.close();
+  }
+
+  private static void await(ComplianceDocumentWarmup warmup) throws InterruptedException {
+    long until=System.currentTimeMillis()+30000;
+    while (!warmup.isReady() && System.currentTimeMillis() < until) Thread.sleep(10);
+    assertTrue(warmup.isReady());
+  }
+
+  private int cachedVersions() {
+    int count=0;
+    for (String shortName: new String[]{OrientDBTestDatabase.SHORT_NAME,"other"}) {
+      String path=OrientDBTestDatabase.JURISDICTION+"/"+OrientDBTestDatabase.TYPE+"/"+shortName+"/1";
+      if (responseCache.get(ComplianceDocumentResponseCache.key(path,MediaType.APPLICATION_JSON,null))!=null) {
+        assertNotNull(responseCache.get(ComplianceDocumentResponseCache.key("/"+path,MediaType.APPLICATION_XML,null)));
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testAllStopsAtCacheCapacity() throws Exception {
+    ComplianceDocumentWarmup warmup=new ComplianceDocumentWarmup(database.get(),responseCache,1,OrientDBTestDatabase.BASE,ComplianceDocumentWarmup.ALL,20,2,null);
+    warmup.start();
+    await(warmup);
+    LinkedHashMap<String,Object> progress=warmup.getProgress();
+    assertEquals(1,progress.get("total"));
+    assertEquals(1,progress.get("loaded"));
+    assertEquals(0,progress.get("failed"));
+    assertEquals(1,cachedVersions());
+    warmup.close();
+  }
+
+  @Test
+  public void testAllWarmsResponses() throws Exception {
+    ComplianceDocumentWarmup warmup=new ComplianceDocumentWarmup(database.get(),responseCache,32,OrientDBTestDatabase.BASE,ComplianceDocumentWarmup.ALL,20,2,null);
+    warmup.start();
+    await(warmup);
+    assertEquals(2,warmup.getProgress().get("loaded"));
+    assertEquals(2,cachedVersions());
+    warmup.close();
+  }
+
+  @Test
+  public void testSkippedWithoutDocumentCache() throws Exception {
+    ComplianceDocumentWarmup warmup=new ComplianceDocumentWarmup(database.get(),responseCache,0,OrientDBTestDatabase.BASE,ComplianceDocumentWarmup.ALL,20,2,null);
+    warmup.start();
+    assertTrue(warmup.isReady());
+    LinkedHashMap<String,Object> progress=warmup.getProgress();
+    assertEquals("document cache disabled",progress.get("skipped"));
+    assertEquals(0,progress.get("loaded"));
+    assertFalse(cachedVersions() > 0);
+    warmup.close();
+  }
+}